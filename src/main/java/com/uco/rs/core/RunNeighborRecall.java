@@ -0,0 +1,82 @@
+package com.uco.rs.core;
+
+import com.google.common.base.Preconditions;
+import com.uco.rs.recommender.similarity.NeighborIndex;
+import com.uco.rs.recommender.similarity.StudentSimilarity;
+import com.uco.rs.util.ConfigLoader;
+import com.uco.rs.util.ModelManage;
+import org.apache.commons.configuration2.BaseConfiguration;
+import org.apache.commons.configuration2.Configuration;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+
+import java.io.File;
+
+/**
+ * Compare the neighborhoods of the students given by the approximate similarity, computed only inside clusters of
+ * students, with the exact ones: time to compute each similarity and recall of the approximate top-N neighbors.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public class RunNeighborRecall {
+
+    public static void main(String[] args) throws TasteException {
+        Preconditions.checkArgument(args.length == 3,
+                "Use: <DB configuration.xml> <CFStudent configuration.xml> <neighborhood size>");
+
+        org.apache.log4j.Logger l = org.apache.log4j.LogManager.getRootLogger();
+        l.setLevel(org.apache.log4j.Level.WARN);
+
+        ModelManage mm = new ModelManage(ConfigLoader.XMLFile(new File(args[0])));
+        Configuration configSim = ConfigLoader.XMLFile(new File(args[1])).subset("recommender.similarity");
+        int n = Integer.parseInt(args[2]);
+
+        DataModel ratings = configSim.getDouble("ratingsWeight") > 0d ? mm.loadModel("ratings") : null;
+        DataModel grades = configSim.getDouble("gradesWeight") > 0d ? mm.loadModel("grades") : null;
+        DataModel branches = configSim.getDouble("branchWeight") > 0d ? mm.loadModel("branches") : null;
+        DataModel students = ratings != null ? ratings : grades != null ? grades : branches;
+
+        // Both similarities computed from scratch, the exact one without clusters
+        BaseConfiguration approximateConfig = new BaseConfiguration();
+        approximateConfig.copy(configSim);
+        approximateConfig.clearProperty("cacheDir");
+        if (approximateConfig.getInt("clusters", 0) <= 0)
+            approximateConfig.setProperty("clusters", (int) Math.ceil(Math.sqrt(students.getNumUsers())));
+        BaseConfiguration exactConfig = new BaseConfiguration();
+        exactConfig.copy(approximateConfig);
+        exactConfig.setProperty("clusters", 0);
+
+        long start = System.nanoTime();
+        StudentSimilarity exact = new StudentSimilarity(ratings, grades, branches, exactConfig, n);
+        System.out.println("Exact (ms):\t" + (System.nanoTime() - start) * 1e-6);
+        start = System.nanoTime();
+        StudentSimilarity approximate = new StudentSimilarity(ratings, grades, branches, approximateConfig, n);
+        System.out.println("Approximate (ms):\t" + (System.nanoTime() - start) * 1e-6);
+        System.out.println("Clusters:\t" + approximateConfig.getInt("clusters"));
+        System.out.println("Probes:\t" + approximateConfig.getInt("clusterProbes", 2));
+
+        NeighborIndex exactNeighbors = new NeighborIndex(n, exact, students);
+        NeighborIndex approximateNeighbors = new NeighborIndex(n, approximate, students);
+        long found = 0, expected = 0;
+        int perfect = 0, users = 0;
+        for (LongPrimitiveIterator it = students.getUserIDs(); it.hasNext(); ) {
+            long student = it.nextLong();
+            long[] truth = exactNeighbors.getUserNeighborhood(student);
+            FastIDSet obtained = new FastIDSet(approximateNeighbors.getUserNeighborhood(student));
+            int hits = 0;
+            for (long neighbor : truth) {
+                if (obtained.contains(neighbor))
+                    hits++;
+            }
+            found += hits;
+            expected += truth.length;
+            if (hits == truth.length)
+                perfect++;
+            users++;
+        }
+        System.out.println("Recall@" + n + ":\t" + (expected == 0 ? 1.0 : (double) found / expected));
+        System.out.println("Students with every neighbor:\t" + (double) perfect / users);
+    }
+}
@@ -0,0 +1,77 @@
+package com.uco.rs.core;
+
+import com.google.common.base.Preconditions;
+import com.uco.rs.evaluator.Evaluator;
+import com.uco.rs.recommender.similarity.SimilarityStorage;
+import com.uco.rs.util.ClassInstantiator;
+import com.uco.rs.util.ConfigLoader;
+import com.uco.rs.util.ModelManage;
+import org.apache.commons.configuration2.Configuration;
+import org.apache.mahout.cf.taste.model.DataModel;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Accuracy of a recommender with its similarity matrices stored as doubles and quantized: the same evaluation, with
+ * the same seed, is run once with each storage and both RMSE are reported.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public class RunQuantizationReport {
+
+    private static final long SEED = 123456L;
+
+    public static void main(String[] args) {
+        Preconditions.checkArgument(args.length == 3,
+                "Use: <DB configuration.xml> <Evaluation configuration.xml> <RS configuration.xml>");
+
+        ModelManage mm = new ModelManage(ConfigLoader.XMLFile(new File(args[0])));
+        DataModel model = mm.loadModel("ratings");
+
+        double exact = rmse(args, mm, model, SimilarityStorage.DOUBLE);
+        double quantized = rmse(args, mm, model, SimilarityStorage.QUANTIZED);
+
+        System.out.println("RMSE with doubles:\t" + exact);
+        System.out.println("RMSE quantized:\t" + quantized);
+        System.out.println("Difference:\t" + (quantized - exact));
+    }
+
+    private static double rmse(String[] args, ModelManage mm, DataModel model, SimilarityStorage storage) {
+        Configuration config = ConfigLoader.XMLFile(new File(args[1]));
+        Configuration configRS = ConfigLoader.XMLFile(new File(args[2]));
+        setStorage(configRS, storage);
+
+        Evaluator eval = ClassInstantiator.instantiateEvaluator(config);
+        eval.setRecommenderBuilder(configRS, mm);
+        eval.setDataModel(model);
+        eval.setOrderedbyNPrefsSubjects(mm);
+        eval.execute(SEED);
+
+        Map<String, Double[]> results = eval.getResults();
+        Preconditions.checkState(results.containsKey("RMSE"), "The evaluator does not compute the RMSE");
+        return results.get("RMSE")[0];
+    }
+
+    /**
+     * Set the storage of every similarity in the configuration of a recommender, nested ones included
+     */
+    private static void setStorage(Configuration configRS, SimilarityStorage storage) {
+        List<String> similarities = new ArrayList<>();
+        for (Iterator<String> it = configRS.getKeys(); it.hasNext(); ) {
+            String key = it.next();
+            int end = key.lastIndexOf("similarity.");
+            if (end == 0 || (end > 0 && key.charAt(end - 1) == '.')) {
+                String prefix = key.substring(0, end + "similarity".length());
+                if (!similarities.contains(prefix))
+                    similarities.add(prefix);
+            }
+        }
+        for (String prefix : similarities)
+            configRS.setProperty(prefix + '.' + SimilarityStorage.CONFIG_KEY, storage.name().toLowerCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,108 @@
+package com.uco.rs.core;
+
+import com.google.common.base.Preconditions;
+import com.uco.rs.recommender.similarity.DoubleSimilarityMatrix;
+import com.uco.rs.recommender.similarity.SimilarityMatrix;
+import com.uco.rs.recommender.similarity.fast.AbstractFastSimilarity;
+import com.uco.rs.recommender.similarity.fast.FastSimilarities;
+import com.uco.rs.recommender.similarity.fast.PreferenceMatrix;
+import com.uco.rs.util.ClassInstantiator;
+import com.uco.rs.util.ConfigLoader;
+import com.uco.rs.util.ModelManage;
+import com.uco.rs.util.Parallel;
+import org.apache.commons.configuration2.Configuration;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+import java.io.File;
+
+/**
+ * Compare the time needed to compute all the similarities between the users of a model with the scalar merge-join
+ * kernels and with their accelerated counterparts: the dense backend for co-rated similarities and the bitset kernels
+ * for set similarities.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public class RunSimilarityBenchmark {
+
+    private static final int REPETITIONS = 5;
+
+    public static void main(String[] args) throws TasteException {
+        Preconditions.checkArgument(args.length == 3,
+                "Use: <DB configuration.xml> <model key> <similarity class>");
+
+        org.apache.log4j.Logger l = org.apache.log4j.LogManager.getRootLogger();
+        l.setLevel(org.apache.log4j.Level.WARN);
+
+        Configuration configDM = ConfigLoader.XMLFile(new File(args[0]));
+        ModelManage mm = new ModelManage(configDM);
+        DataModel model = mm.loadModel(args[1]);
+
+        PreferenceMatrix matrix = PreferenceMatrix.of(model);
+        System.out.println("Users:\t" + matrix.numUsers());
+        System.out.println("Items:\t" + matrix.numItems());
+        System.out.println("Density:\t" + (double) matrix.numPreferences() / matrix.numUsers() / matrix.numItems());
+
+        UserSimilarity similarity = ClassInstantiator.instantiateUserSimilarity(args[2], model);
+        Preconditions.checkArgument(similarity instanceof AbstractFastSimilarity, "No native kernel for " + args[2]);
+        AbstractFastSimilarity kernel = (AbstractFastSimilarity) similarity;
+
+        boolean bitsets = FastSimilarities.usesBitsets();
+        FastSimilarities.useBitsets(false);
+        long start = System.nanoTime();
+        SimilarityMatrix reference = allPairs(kernel, matrix);
+        long best = System.nanoTime() - start;
+        for (int r = 1; r < REPETITIONS; r++) {
+            start = System.nanoTime();
+            allPairs(kernel, matrix);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println("Scalar merge-join (ms):\t" + best * 1e-6);
+
+        UserSimilarity dense = FastSimilarities.denseIfWorthwhile(kernel, 0.0);
+        SimilarityMatrix obtained;
+        if (dense != kernel) {
+            // Co-rated similarity: compare with the dense backend
+            best = Long.MAX_VALUE;
+            for (int r = 0; r < REPETITIONS; r++) {
+                start = System.nanoTime();
+                dense = FastSimilarities.denseIfWorthwhile(kernel, 0.0);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.println("Dense (ms):\t" + best * 1e-6);
+            obtained = allPairs((AbstractFastSimilarity) dense, matrix);
+        } else {
+            // Set similarity: compare with the bitset kernels
+            FastSimilarities.useBitsets(true);
+            System.out.println("Compact bitsets:\t" + matrix.hasCompactBits());
+            obtained = allPairs(kernel, matrix);
+            best = Long.MAX_VALUE;
+            for (int r = 0; r < REPETITIONS; r++) {
+                start = System.nanoTime();
+                allPairs(kernel, matrix);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.println("Bitsets (ms):\t" + best * 1e-6);
+        }
+        FastSimilarities.useBitsets(bitsets);
+
+        int mismatches = 0;
+        for (int i = 0; i < matrix.numUsers(); i++) {
+            for (int j = i + 1; j < matrix.numUsers(); j++) {
+                if (Double.doubleToLongBits(reference.get(i, j)) != Double.doubleToLongBits(obtained.get(i, j)))
+                    mismatches++;
+            }
+        }
+        System.out.println("Mismatches:\t" + mismatches);
+    }
+
+    private static SimilarityMatrix allPairs(AbstractFastSimilarity similarity, PreferenceMatrix matrix) {
+        SimilarityMatrix result = new DoubleSimilarityMatrix(matrix.numUsers());
+        Parallel.forRange(matrix.numUsers(), i -> {
+            for (int j = i + 1; j < matrix.numUsers(); j++)
+                result.set(i, j, similarity.rowSimilarity(matrix, i, j));
+        });
+        return result;
+    }
+}
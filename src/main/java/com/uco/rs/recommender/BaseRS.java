@@ -31,7 +31,7 @@ public abstract class BaseRS implements Recommender {
     // Base relation between users and items, normally their ratings.
     protected DataModel baseForRecommendations;
     // Manage relations with the data
-    protected static ModelManage mm;
+    protected final ModelManage mm;
     // Normalize base relation
     Boolean normalization;
     // Add log to the execution
@@ -47,7 +47,7 @@ public abstract class BaseRS implements Recommender {
     public BaseRS(Configuration configuration, ModelManage mm) {
         log.info("Loading general recommender configuration");
         normalization = configuration.getBoolean("normalize", false);
-        BaseRS.mm = mm;
+        this.mm = mm;
     }
 
     //////////////////////////////////////////////
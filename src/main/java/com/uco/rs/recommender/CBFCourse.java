@@ -1,6 +1,8 @@
 package com.uco.rs.recommender;
 
 import com.uco.rs.recommender.similarity.CourseSimilarity;
+import com.uco.rs.recommender.similarity.SimilarityComponents;
+import com.uco.rs.recommender.similarity.StoragePlanner;
 import com.uco.rs.util.ModelManage;
 import org.apache.commons.configuration2.Configuration;
 import org.apache.mahout.cf.taste.common.TasteException;
@@ -11,6 +13,8 @@ import org.apache.mahout.cf.taste.impl.similarity.GenericItemSimilarity;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
 
+import java.io.IOException;
+
 /**
  * Content based recommender for subjects that take a specific similarity metric based on professors, competences,
  * contents and knowledge area of subjects.
@@ -26,6 +30,15 @@ public class CBFCourse extends BaseRS {
     private DataModel competences;
 
     private Configuration configSim;
+    // Similarity of the last execution, closed when the next one replaces it
+    private CourseSimilarity courseSimilarity;
+
+    // Similarities of subjects by a single criterion, reused by every execution of this recommender since they don't
+    // depend on the ratings: one per criterion, released along with the recommender
+    private final SimilarityComponents components = new SimilarityComponents(4);
+
+    // Heap taken by every pair of subjects in GenericItemSimilarity: key, reference and boxed double in a FastByIDMap
+    private static final double GENERIC_SIMILARITY_BYTES = 40.0;
 
     //////////////////////////////////////////////
     // ------------------------------ Constructor
@@ -71,13 +84,65 @@ public class CBFCourse extends BaseRS {
         super.execute(model);
 
         try {
-            ItemSimilarity similarity = new CachingItemSimilarity(new GenericItemSimilarity(
-                    new CourseSimilarity(professors, areas, competences, configSim), model), model);
+            // Storage chosen for the subjects and the heap of this execution, unless the configuration sets it
+            Configuration configSim = StoragePlanner.isAuto(this.configSim) ? planStorage() : this.configSim;
+
+            // Each execution opens the documentary database again, so the previous one is released
+            closeSimilarity();
+            courseSimilarity = new CourseSimilarity(professors, areas, competences, configSim, components);
+            // Copies of the similarities wouldn't see the contents refreshed, so they are read from the matrix
+            ItemSimilarity similarity = isRefreshing() ? courseSimilarity : new CachingItemSimilarity(
+                    new GenericItemSimilarity(courseSimilarity, model), model);
 
             log.info("Launching recommender system");
-            delegate = new CachingRecommender(new GenericItemBasedRecommender(model, similarity));
+            CachingRecommender recommender = new CachingRecommender(new GenericItemBasedRecommender(model,
+                    similarity));
+            // Recommendations computed with the old contents are discarded
+            if (isRefreshing())
+                courseSimilarity.addListener(changed -> recommender.clear());
+            delegate = recommender;
         } catch (TasteException e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Whether the contents of the subjects are reloaded while the recommender runs
+     */
+    private boolean isRefreshing() {
+        return configSim.getDouble("contentWeight") > 0d && configSim.getLong("refreshSeconds", 0L) > 0;
+    }
+
+    /**
+     * Release the similarity of the last execution: its documentary database and its background refresh
+     */
+    private void closeSimilarity() {
+        if (courseSimilarity == null)
+            return;
+        try {
+            courseSimilarity.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        courseSimilarity = null;
+    }
+
+    /**
+     * Configuration of the similarity with the storage that the planner chooses for the number of subjects. The
+     * single criterion components, and the similarities copied by GenericItemSimilarity unless contents are
+     * refreshed, stay in the heap whatever the storage.
+     */
+    private Configuration planStorage() throws TasteException {
+        DataModel subjects = professors != null ? professors : competences != null ? competences : areas;
+        int criteria = 0;
+        for (String weight : new String[]{"professorsWeight", "areaWeight", "competencesWeight", "contentWeight"}) {
+            if (configSim.getDouble(weight) > 0d)
+                criteria++;
+        }
+        double fixedBytesPerPair = criteria * (double) Double.BYTES;
+        if (!isRefreshing())
+            fixedBytesPerPair += GENERIC_SIMILARITY_BYTES;
+        StoragePlanner planner = new StoragePlanner("course", subjects.getNumUsers(), 0, false, fixedBytesPerPair);
+        return StoragePlanner.withStorage(configSim, planner.plan());
+    }
 }
@@ -1,17 +1,16 @@
 package com.uco.rs.recommender;
 
+import com.uco.rs.recommender.similarity.NeighborIndex;
+import com.uco.rs.recommender.similarity.StoragePlanner;
 import com.uco.rs.recommender.similarity.StudentSimilarity;
 import com.uco.rs.util.ModelManage;
 import org.apache.commons.configuration2.Configuration;
-import org.apache.mahout.cf.taste.impl.neighborhood.CachingUserNeighborhood;
-import org.apache.mahout.cf.taste.impl.neighborhood.NearestNUserNeighborhood;
-import org.apache.mahout.cf.taste.impl.neighborhood.ThresholdUserNeighborhood;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
 import org.apache.mahout.cf.taste.impl.recommender.CachingRecommender;
 import org.apache.mahout.cf.taste.impl.recommender.GenericUserBasedRecommender;
-import org.apache.mahout.cf.taste.impl.similarity.CachingUserSimilarity;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
-import org.apache.mahout.cf.taste.similarity.UserSimilarity;
 
 /**
  * Content based recommender for students: hybrid similarity with ratings, grades and specialty
@@ -33,6 +32,8 @@ public class CFStudent extends BaseRS {
     private int neighborhoodMethod;
     private int topN;
     private double threshold;
+    // Skip the pairs of students that can't reach the threshold
+    private boolean prune;
 
     //////////////////////////////////////////////
     // ------------------------------ Constructor
@@ -71,8 +72,10 @@ public class CFStudent extends BaseRS {
         this.neighborhoodMethod = configuration.getInt("neighborhood.option");
         if (neighborhoodMethod == 1)
             this.topN = configuration.getInt("neighborhood.size");
-        else if (neighborhoodMethod == 2)
+        else if (neighborhoodMethod == 2) {
             this.threshold = configuration.getDouble("neighborhood.threshold");
+            this.prune = configuration.getBoolean("neighborhood.prune", false);
+        }
 
         configSim = configuration.subset("similarity");
     }
@@ -91,18 +94,29 @@ public class CFStudent extends BaseRS {
         super.execute(model);
 
         try {
-            UserSimilarity similarity = new CachingUserSimilarity(new StudentSimilarity(ratings, grades, branches,
-                    configSim), model);
+            // Storage chosen for the students and the heap of this execution, unless the configuration sets it or
+            // there is no matrix since the similarities are lazy
+            Configuration configSim = StoragePlanner.isAuto(this.configSim) && !this.configSim.getBoolean("lazy",
+                    false) ? planStorage() : this.configSim;
+
+            // Every similarity is precomputed, so neither the similarity nor the neighborhoods need a cache
+            // Threshold neighborhoods only look at the similarities that reach the threshold, and the others at the
+            // first neighbors
+            StudentSimilarity similarity;
+            if (prune)
+                similarity = new StudentSimilarity(ratings, grades, branches, configSim, threshold);
+            else if (neighborhoodMethod == 1)
+                similarity = new StudentSimilarity(ratings, grades, branches, configSim, topN);
+            else
+                similarity = new StudentSimilarity(ratings, grades, branches, configSim);
 
             log.info("Creating neighborhood");
             switch (neighborhoodMethod) {
                 case 1:
-                    this.neighborhood = new CachingUserNeighborhood(new NearestNUserNeighborhood(topN, similarity,
-                            baseForRecommendations), baseForRecommendations);
+                    this.neighborhood = new NeighborIndex(topN, similarity, baseForRecommendations);
                     break;
                 case 2:
-                    this.neighborhood = new CachingUserNeighborhood(new ThresholdUserNeighborhood(threshold, similarity,
-                            baseForRecommendations), baseForRecommendations);
+                    this.neighborhood = new NeighborIndex(threshold, similarity, baseForRecommendations);
                     break;
                 default:
                     System.err.println("Neighborhood option does not exists");
@@ -115,4 +129,42 @@ public class CFStudent extends BaseRS {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Configuration of the similarity with the storage that the planner chooses for the number of students. With
+     * doubles, the criteria dense enough for the dense backend also keep its structures in the heap.
+     */
+    private Configuration planStorage() throws TasteException {
+        DataModel students = ratings != null ? ratings : grades != null ? grades : branches;
+        double denseThreshold = configSim.getDouble("denseThreshold", StudentSimilarity.DEFAULT_DENSE_THRESHOLD);
+        long denseBytes = denseBytes(ratings, denseThreshold) + denseBytes(grades, denseThreshold);
+        StoragePlanner planner = new StoragePlanner("student", students.getNumUsers(),
+                neighborhoodMethod == 1 ? topN : 0, true, 0.0, denseBytes);
+        return StoragePlanner.withStorage(configSim, planner.plan());
+    }
+
+    /**
+     * Heap taken by the dense backend of a criterion if its model qualifies for it: the triangle of its similarities
+     * and two dense copies of the model as floats. Whether its similarity has a dense backend is not checked, so it
+     * may be overestimated.
+     */
+    private static long denseBytes(DataModel model, double denseThreshold) throws TasteException {
+        if (model == null)
+            return 0L;
+        long users = model.getNumUsers();
+        long items = model.getNumItems();
+        long cells = users * items;
+        long pairs = users * (users - 1) / 2;
+        // Same limits as FastSimilarities.denseIfWorthwhile
+        if (cells == 0 || cells > Integer.MAX_VALUE || pairs >= Integer.MAX_VALUE)
+            return 0L;
+
+        long preferences = 0;
+        LongPrimitiveIterator userIDs = model.getUserIDs();
+        while (userIDs.hasNext())
+            preferences += model.getPreferencesFromUser(userIDs.nextLong()).length();
+        if ((double) preferences / cells < denseThreshold)
+            return 0L;
+        return pairs * Double.BYTES + 2 * cells * Float.BYTES;
+    }
 }
@@ -5,15 +5,12 @@ import org.apache.commons.configuration2.Configuration;
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
-import org.apache.mahout.cf.taste.impl.recommender.ByValueRecommendedItemComparator;
-import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.apache.mahout.cf.taste.recommender.IDRescorer;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.cf.taste.recommender.Recommender;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -102,7 +99,8 @@ public class HFStudentCourse extends BaseRS {
                 int nItems = getDataModel().getNumItems();
                 int nPrefs = preferences.length();
 
-                ArrayList<RecommendedItem> possibles = new ArrayList<>(nItems - nPrefs);
+                // Only the best ones are kept while the estimations are made
+                TopRecommendations top = new TopRecommendations(howMany, nItems - nPrefs);
                 // Index that always point to a already rated item, it controls that
                 // recommendations only contain unknown items
                 // Assume that item lists of preferences and possibles are ordered by item id
@@ -118,17 +116,12 @@ public class HFStudentCourse extends BaseRS {
 
                         double rescored = rescorer == null ? estimation : rescorer.rescore(itemID, estimation);
 
-                        possibles.add(new GenericRecommendedItem(itemID, (float) rescored));
+                        top.offer(itemID, (float) rescored);
                     }
                 }
 
-                // Order estimations by value of preference and return the  highest
-                List<RecommendedItem> result = possibles.subList(0, nItems - nPrefs);
-                result.sort(ByValueRecommendedItemComparator.getInstance());
-                if (result.size() < howMany)
-                    return result;
-                else
-                    return result.subList(0, howMany);
+                // Estimations by decreasing value of preference
+                return top.toList();
             }
 
             @Override
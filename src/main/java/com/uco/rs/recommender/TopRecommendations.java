@@ -0,0 +1,128 @@
+package com.uco.rs.recommender;
+
+import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Selection of the best recommendations among the candidates offered one by one, with a bounded min-heap over
+ * primitive arrays: each candidate costs O(log k) and only the k selected items are allocated. Recommendations are
+ * ordered by decreasing value, ties by order of arrival. Candidates whose value is NaN are left out, as in Mahout,
+ * since they can't be recommended items.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class TopRecommendations {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    // Heap of the selected candidates, the one that ranks last at the root
+    private final long[] itemIDs;
+    private final float[] values;
+    private final int[] arrivals;
+    private int size;
+    private int offered;
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+    /**
+     * @param howMany    number of recommendations to select
+     * @param candidates maximum number of candidates that will be offered
+     */
+    public TopRecommendations(int howMany, int candidates) {
+        int capacity = Math.max(0, Math.min(howMany, candidates));
+        itemIDs = new long[capacity];
+        values = new float[capacity];
+        arrivals = new int[capacity];
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+    public void offer(long itemID, float value) {
+        int arrival = offered++;
+        if (Float.isNaN(value))
+            return;
+        if (size < itemIDs.length) {
+            int slot = size++;
+            store(slot, itemID, value, arrival);
+            siftUp(slot);
+        } else if (size > 0 && compare(value, arrival, values[0], arrivals[0]) < 0) {
+            store(0, itemID, value, arrival);
+            siftDown(0, size);
+        }
+    }
+
+    /**
+     * Selected recommendations, best first. Called once, when every candidate has been offered.
+     */
+    public List<RecommendedItem> toList() {
+        // Heap sort: the root goes to the end of the heap, which then shrinks
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        List<RecommendedItem> result = new ArrayList<>(size);
+        for (int slot = 0; slot < size; slot++)
+            result.add(new GenericRecommendedItem(itemIDs[slot], values[slot]));
+        return result;
+    }
+
+    /**
+     * Order of two candidates: negative if the first one ranks before the second
+     */
+    private static int compare(float value1, int arrival1, float value2, int arrival2) {
+        if (value1 != value2)
+            return value1 > value2 ? -1 : 1;
+        return Integer.compare(arrival1, arrival2);
+    }
+
+    /**
+     * Whether the candidate of a slot should be nearer the root than the one of another slot
+     */
+    private boolean ranksAfter(int slot1, int slot2) {
+        return compare(values[slot1], arrivals[slot1], values[slot2], arrivals[slot2]) > 0;
+    }
+
+    private void siftUp(int slot) {
+        while (slot > 0) {
+            int parent = (slot - 1) >>> 1;
+            if (!ranksAfter(slot, parent))
+                return;
+            swap(slot, parent);
+            slot = parent;
+        }
+    }
+
+    private void siftDown(int slot, int end) {
+        while (true) {
+            int child = 2 * slot + 1;
+            if (child >= end)
+                return;
+            if (child + 1 < end && ranksAfter(child + 1, child))
+                child++;
+            if (!ranksAfter(child, slot))
+                return;
+            swap(slot, child);
+            slot = child;
+        }
+    }
+
+    private void store(int slot, long itemID, float value, int arrival) {
+        itemIDs[slot] = itemID;
+        values[slot] = value;
+        arrivals[slot] = arrival;
+    }
+
+    private void swap(int slot1, int slot2) {
+        long itemID = itemIDs[slot1];
+        float value = values[slot1];
+        int arrival = arrivals[slot1];
+        store(slot1, itemIDs[slot2], values[slot2], arrivals[slot2]);
+        store(slot2, itemID, value, arrival);
+    }
+}
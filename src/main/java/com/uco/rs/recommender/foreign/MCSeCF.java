@@ -6,9 +6,7 @@ import org.apache.commons.configuration2.Configuration;
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
-import org.apache.mahout.cf.taste.impl.recommender.ByValueRecommendedItemComparator;
 import org.apache.mahout.cf.taste.impl.recommender.GenericItemBasedRecommender;
-import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.apache.mahout.cf.taste.recommender.IDRescorer;
@@ -17,8 +15,8 @@ import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.cf.taste.recommender.Recommender;
 import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
 import com.uco.rs.recommender.BaseRS;
+import com.uco.rs.recommender.TopRecommendations;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -36,11 +34,14 @@ public class MCSeCF extends BaseRS {
     private CBFCourse semanticCBF;
     private ItemBasedRecommender itemCF;
 
+    private Configuration configSim;
+
 
     public MCSeCF(Configuration configuration, ModelManage mm) {
         super(configuration, mm);
         // Student content based subjectreco.recommender
         semanticCBF = new CBFCourse(configuration.subset("cbfsemantic"), mm);
+        configSim = configuration.subset("similarity");
     }
 
     //////////////////////////////////////////////
@@ -59,7 +60,7 @@ public class MCSeCF extends BaseRS {
 
         DataModel grades = mm.loadModel("grades");
 
-        ItemSimilarity itemSimilarity = new MCSeCFSimilarity(model, grades);
+        ItemSimilarity itemSimilarity = new MCSeCFSimilarity(model, grades, configSim);
         itemCF = new GenericItemBasedRecommender(model, itemSimilarity);
 
         // Combine two recommenders using Mahout Recommender interface
@@ -93,7 +94,8 @@ public class MCSeCF extends BaseRS {
                 int nItems = getDataModel().getNumItems();
                 int nPrefs = preferences.length();
 
-                ArrayList<RecommendedItem> possibles = new ArrayList<>(nItems - nPrefs);
+                // Only the best ones are kept while the estimations are made
+                TopRecommendations top = new TopRecommendations(howMany, nItems - nPrefs);
                 // Index that always point to a already rated item, it controls that
                 // recommendations only contain unknown items
                 // Assume that item lists of preferences and possibles are ordered by item id
@@ -109,14 +111,12 @@ public class MCSeCF extends BaseRS {
 
                         double rescored = rescorer == null ? estimation : rescorer.rescore(itemID, estimation);
 
-                        possibles.add(new GenericRecommendedItem(itemID, (float) rescored));
+                        top.offer(itemID, (float) rescored);
                     }
                 }
 
-                // Order estimations by value of preference and return the  highest
-                List<RecommendedItem> result = possibles.subList(0, nItems - nPrefs);
-                result.sort(ByValueRecommendedItemComparator.getInstance());
-                return result.subList(0, howMany);
+                // Estimations by decreasing value of preference
+                return top.toList();
             }
 
             @Override
@@ -1,25 +1,28 @@
 package com.uco.rs.recommender.foreign;
 
-import com.google.common.collect.Lists;
+import com.uco.rs.recommender.similarity.SimilarityCache;
+import com.uco.rs.recommender.similarity.SimilarityMatrix;
+import com.uco.rs.recommender.similarity.SimilarityStorage;
+import com.uco.rs.recommender.similarity.fast.CenteredItemMatrix;
+import com.uco.rs.recommender.similarity.fast.PreferenceMatrix;
+import com.uco.rs.util.Parallel;
+import org.apache.commons.configuration2.Configuration;
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
-import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
-import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import com.uco.rs.recommender.similarity.AdjustedCosineSimilarity;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.List;
-import java.util.concurrent.*;
 
 /**
- * Item based similarity for subjects using multiple criteria: teachers
- * department skills or their program contents
+ * Item based similarity for subjects combining the adjusted cosine similarities of their ratings and grades,
+ * weighted by the Jaccard index of the students that rated them. Every criterion of a pair of subjects is computed in
+ * a single kernel over the item-major views of the data models.
  *
  * @author Aurora Esteban Toscano
  */
@@ -28,21 +31,23 @@ public class MCSeCFSimilarity implements ItemSimilarity {
     //////////////////////////////////////////////
     // -------------------------------- Variables
     /////////////////////////////////////////////
-    private static ThreadLocal<DataModel> ratings = new ThreadLocal<>();
-    private static ThreadLocal<DataModel> grades = new ThreadLocal<>();
+    private final DataModel ratings;
+    private final DataModel grades;
 
-    // Single criteria similarities
-    private static ItemSimilarity ratingsSim;
-    private static ItemSimilarity gradesSim;
-    private ItemSimilarity jaccard;
     // Importance of each criteria in final similarity in [0,1]
-    private double wRatings = 0.5;
-    private double wGrades = 0.5;
+    private double wRatings;
+    private double wGrades;
+    // How the final similarities are stored
+    private final SimilarityStorage storage;
 
     // Threshold to consider two subjects similar
     private static final double THRESHOLD = 0.3;
 
-    private final FastByIDMap<FastByIDMap<Double>> similarityMaps = new FastByIDMap<>();
+    // Subjects of the matrix in increasing order
+    private final long[] subjects;
+    private SimilarityMatrix matrix;
+
+    private static final String CACHE_NAME = "mcsecf";
 
     protected static final Logger log = LoggerFactory.getLogger(MCSeCFSimilarity.class);
 
@@ -51,101 +56,158 @@ public class MCSeCFSimilarity implements ItemSimilarity {
     /////////////////////////////////////////////
 
     /**
-     * Initialize single criteria similarities
+     * Compute the similarities between the subjects rated by the students
+     *
+     * @param config configuration of the similarity: weights of the criteria and cache
      */
-    public MCSeCFSimilarity(DataModel ratings, DataModel grades) {
+    public MCSeCFSimilarity(DataModel ratings, DataModel grades, Configuration config) {
+        wRatings = config.getDouble("ratingsWeight", 0.5);
+        wGrades = config.getDouble("gradesWeight", 0.5);
+        storage = SimilarityStorage.fromConfig(config);
 
-        MCSeCFSimilarity.ratings.set(ratings);
-        MCSeCFSimilarity.grades.set(grades);
+        this.ratings = ratings;
+        this.grades = grades;
+        subjects = SimilarityMatrix.sortedIDs(getSubjects());
 
-        try {
-            if (wRatings > 0.0)
-                ratingsSim = new AdjustedCosineSimilarity(MCSeCFSimilarity.ratings.get());
-            if (wGrades > 0.0)
-                gradesSim = new AdjustedCosineSimilarity(MCSeCFSimilarity.grades.get());
-            jaccard = new TanimotoCoefficientSimilarity(ratings);
-        } catch (TasteException e) {
-            e.printStackTrace();
-            System.exit(-1);
+        // Similarities computed before from the same data
+        SimilarityCache cache = SimilarityCache.fromConfig(config);
+        String fingerprint = null;
+        if (cache != null) {
+            try {
+                fingerprint = SimilarityCache.fingerprint(config, ratings, grades);
+            } catch (TasteException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+            matrix = cache.load(CACHE_NAME, fingerprint, subjects, storage);
+            if (matrix != null)
+                return;
         }
 
         log.info("Computing similarity based on subjects");
         computeFinalSimilarities();
+        if (cache != null)
+            cache.store(CACHE_NAME, fingerprint, subjects, matrix);
     }
 
     private void computeFinalSimilarities() {
-        LongPrimitiveIterator rows = getSubjects();
+        PreferenceMatrix ratingsMatrix = null, gradesMatrix = null;
+        try {
+            ratingsMatrix = PreferenceMatrix.of(ratings);
+            if (wGrades > 0.0)
+                gradesMatrix = PreferenceMatrix.of(grades);
+        } catch (TasteException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        CenteredItemMatrix ratingsView = ratingsMatrix.centeredByItem();
+        CenteredItemMatrix gradesView = gradesMatrix == null ? null : gradesMatrix.centeredByItem();
+        int[] ratingsColumns = columns(ratingsMatrix);
+        int[] gradesColumns = columns(gradesMatrix);
 
-        class Wrapper implements Callable<Double[]> {
-            private long subject1, subject2;
+        SimilarityMatrix matrix = SimilarityMatrix.create(subjects.length, storage);
+        Parallel.forRange(subjects.length, i -> {
+            double[] sums = new double[3];
+            for (int j = i + 1; j < subjects.length; j++) {
+                // Ratings cosine and Jaccard index come from the same merge of co-raters. As in
+                // TanimotoCoefficientSimilarity, the Jaccard index is undefined without co-raters
+                int r1 = ratingsColumns[i], r2 = ratingsColumns[j];
+                double simRatings = 0.0, jaccard = Double.NaN;
+                if (r1 >= 0 && r2 >= 0) {
+                    int coRaters = merge(ratingsView, r1, r2, sums);
+                    if (wRatings > 0.0)
+                        simRatings = adjustedCosine(ratingsView, r1, r2, coRaters, sums);
+                    if (coRaters > 0)
+                        jaccard = (double) coRaters / (size(ratingsView, r1) + size(ratingsView, r2) - coRaters);
+                }
 
-            private Wrapper(long sb1, long sb2) {
-                this.subject1 = sb1;
-                this.subject2 = sb2;
+                double simGrades = 0.0;
+                if (gradesView != null) {
+                    int g1 = gradesColumns[i], g2 = gradesColumns[j];
+                    if (g1 >= 0 && g2 >= 0)
+                        simGrades = adjustedCosine(gradesView, g1, g2, merge(gradesView, g1, g2, sums), sums);
+                }
+                matrix.set(i, j, combine(simRatings, simGrades, jaccard));
             }
+        });
+        this.matrix = matrix;
+    }
 
-            @Override
-            public Double[] call() {
-                return new Double[]{(double) subject2, computeSimilarity(subject1, subject2)};
-            }
-        }
+    /**
+     * Column of every subject in a snapshot, negative for the subjects it doesn't have
+     */
+    private int[] columns(PreferenceMatrix snapshot) {
+        int[] columns = new int[subjects.length];
+        for (int i = 0; i < subjects.length; i++)
+            columns[i] = snapshot == null ? -1 : snapshot.columnOrNegative(subjects[i]);
+        return columns;
+    }
 
-        int count = 1;
-        assert rows != null;
-        while (rows.hasNext()) {
-            long subject1 = rows.nextLong();
-            LongPrimitiveIterator cols = getSubjects();
-            assert cols != null;
-            cols.skip(count);
-            FastByIDMap<Double> map = new FastByIDMap<>();
-
-            ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-            Collection<Callable<Double[]>> collection = Lists.newArrayList();
-
-            while (cols.hasNext()) {
-                long subject2 = cols.next();
-                collection.add(new Wrapper(subject1, subject2));
-            }
+    private static int size(CenteredItemMatrix view, int column) {
+        return view.columnEnd(column) - view.columnStart(column);
+    }
 
-            try {
-                List<Future<Double[]>> futures = executor.invokeAll(collection);
-                for (Future<Double[]> future : futures) {
-                    Double[] result = future.get();
-                    map.put(result[0].longValue(), result[1]);
-                }
-            } catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
-            }
-            executor.shutdown();
-            try {
-                executor.awaitTermination(5, TimeUnit.MINUTES);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    /**
+     * Merge two columns of a centered view over their common students
+     *
+     * @param sums filled with the sums of the products of both centered values and of the squares of each one
+     * @return number of students in common
+     */
+    private static int merge(CenteredItemMatrix view, int column1, int column2, double[] sums) {
+        int[] rows = view.rows();
+        double[] values = view.centered();
+        int x = view.columnStart(column1);
+        int xEnd = view.columnEnd(column1);
+        int y = view.columnStart(column2);
+        int yEnd = view.columnEnd(column2);
+        double sumXY = 0.0, sumX2 = 0.0, sumY2 = 0.0;
+        int count = 0;
+        while (x < xEnd && y < yEnd) {
+            int rx = rows[x];
+            int ry = rows[y];
+            if (rx < ry) {
+                x++;
+            } else if (rx > ry) {
+                y++;
+            } else {
+                double cx = values[x++];
+                double cy = values[y++];
+                sumXY += cx * cy;
+                sumX2 += cx * cx;
+                sumY2 += cy * cy;
+                count++;
             }
-            similarityMaps.put(subject1, map);
-            count++;
         }
+        sums[0] = sumXY;
+        sums[1] = sumX2;
+        sums[2] = sumY2;
+        return count;
     }
 
     /**
-     * Compute the multi-criteria similarity of two subjects combining the simple
-     * similarities of the subjects
+     * Adjusted cosine from the sums of a merge, as computed by
+     * {@link com.uco.rs.recommender.similarity.AdjustedCosineSimilarity}
      */
-    private double computeSimilarity(long subject1, long subject2) {
-        double sim1 = 0.0, sim2 = 0.0;
-        double jac = 0;
-        try {
-            if (wRatings > 0.0)
-                sim1 = ratingsSim.itemSimilarity(subject1, subject2);
-            if (wGrades > 0.0)
-                sim2 = gradesSim.itemSimilarity(subject1, subject2);
-            jac = jaccard.itemSimilarity(subject1, subject2);
-        } catch (TasteException e) {
-            e.printStackTrace();
-            System.exit(-1);
-        }
+    private static double adjustedCosine(CenteredItemMatrix view, int column1, int column2, int count,
+                                         double[] sums) {
+        if (size(view, column1) == 0 || size(view, column2) == 0 || count == 0)
+            return Double.NaN;
+        double denominator = Math.sqrt(sums[1]) * Math.sqrt(sums[2]);
+        if (denominator == 0.0)
+            return Double.NaN;
+        double result = sums[0] / denominator;
+        if (result < -1.0)
+            result = -1.0;
+        else if (result > 1.0)
+            result = 1.0;
+        return result;
+    }
 
-        double similarity = (wRatings * sim1 + wGrades * sim2) * jac;
+    /**
+     * Combine the single criterion similarities of two subjects in the multi-criteria similarity
+     */
+    private double combine(double simRatings, double simGrades, double jaccard) {
+        double similarity = (wRatings * simRatings + wGrades * simGrades) * jaccard;
         if (similarity > 1.0)
             similarity = 1.0;
         if (similarity < -1.0)
@@ -156,15 +218,13 @@ public class MCSeCFSimilarity implements ItemSimilarity {
 
     @Override
     public double itemSimilarity(long subject1, long subject2) {
-        try {
-            if (subject1 < subject2)
-                return similarityMaps.get(subject1).get(subject2);
-            else if (subject2 < subject1)
-                return similarityMaps.get(subject2).get(subject1);
-        } catch (Exception ignored) {
+        if (subject1 == subject2)
+            return 1.0;
+        int i = Arrays.binarySearch(subjects, subject1);
+        int j = Arrays.binarySearch(subjects, subject2);
+        if (i < 0 || j < 0)
             return 0.0;
-        }
-        return 1.0;
+        return matrix.get(i, j);
     }
 
     @Override
@@ -179,10 +239,7 @@ public class MCSeCFSimilarity implements ItemSimilarity {
     @Override
     public long[] allSimilarItemIDs(long subject) throws TasteException {
         FastIDSet similars = new FastIDSet();
-        LongPrimitiveIterator allSubjects = ratings.get().getUserIDs();
-
-        while (allSubjects.hasNext()) {
-            long possiblySimilar = allSubjects.nextLong();
+        for (long possiblySimilar : subjects) {
             double score = itemSimilarity(subject, possiblySimilar);
             if (score > THRESHOLD)
                 similars.add(possiblySimilar);
@@ -194,12 +251,13 @@ public class MCSeCFSimilarity implements ItemSimilarity {
     public void refresh(Collection<Refreshable> arg0) {
     }
 
+    /**
+     * Subjects are the items of the ratings, the only ones an item based recommender over them asks for
+     */
     private LongPrimitiveIterator getSubjects() {
         try {
-            if (ratings.get() != null)
-                return ratings.get().getUserIDs();
-            else if (grades.get() != null)
-                return grades.get().getUserIDs();
+            if (ratings != null)
+                return ratings.getItemIDs();
         } catch (TasteException e) {
             e.printStackTrace();
         }
@@ -35,11 +35,18 @@ abstract class AbstractSimilarity extends AbstractItemSimilarity implements User
             public Object call() throws TasteException {
                 cachedNumItems = dataModel.getNumItems();
                 cachedNumUsers = dataModel.getNumUsers();
+                dataModelRefreshed();
                 return null;
             }
         });
     }
 
+    /**
+     * Called once the data model has been refreshed, for subclasses that keep anything derived from it
+     */
+    void dataModelRefreshed() {
+    }
+
     final PreferenceInferrer getPreferenceInferrer() {
         return inferrer;
     }
@@ -1,10 +1,11 @@
 package com.uco.rs.recommender.similarity;
 
 import com.google.common.base.Preconditions;
+import com.uco.rs.recommender.similarity.fast.CenteredItemMatrix;
+import com.uco.rs.recommender.similarity.fast.PreferenceMatrix;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.common.Weighting;
 import org.apache.mahout.cf.taste.model.DataModel;
-import org.apache.mahout.cf.taste.model.PreferenceArray;
 
 /**
  * Custom implementation of {@link AdjustedCosineSimilarity}
@@ -14,6 +15,9 @@ import org.apache.mahout.cf.taste.model.PreferenceArray;
  */
 public class AdjustedCosineSimilarity extends AbstractSimilarity {
 
+    // Snapshot of the data model, which keeps its centered view, dropped when the model is refreshed
+    private volatile PreferenceMatrix matrix;
+
     /**
      * Creates new {@link AdjustedCosineSimilarity}
      *
@@ -60,20 +64,21 @@ public class AdjustedCosineSimilarity extends AbstractSimilarity {
     }
 
     /**
-     * Gets the average preference
-     * @param prefs
-     * @return
+     * Snapshot of the data model, taken on first use for each version of the model
      */
-    private double averagePreference(PreferenceArray prefs){
-        double sum = 0.0;
-        int n = prefs.length();
-        for(int i=0; i<n; i++){
-            sum+=prefs.getValue(i);
-        }
-        if(n>0){
-            return sum/n;
+    private PreferenceMatrix matrix() throws TasteException {
+        PreferenceMatrix m = matrix;
+        if (m == null) {
+            m = PreferenceMatrix.of(getDataModel());
+            matrix = m;
         }
-        return 0.0d;
+        return m;
+    }
+
+    @Override
+    void dataModelRefreshed() {
+        PreferenceMatrix.invalidate(getDataModel());
+        matrix = null;
     }
 
     /**
@@ -81,96 +86,49 @@ public class AdjustedCosineSimilarity extends AbstractSimilarity {
      */
     @Override
     public double itemSimilarity(long itemID1, long itemID2) throws TasteException {
-        DataModel dataModel = getDataModel();
-        PreferenceArray xPrefs = null;
-        PreferenceArray yPrefs = null;
-        try {
-            xPrefs = dataModel.getPreferencesForItem(itemID1);
-            yPrefs = dataModel.getPreferencesForItem(itemID2);
-        } catch (Exception ignored) {
+        // User means and centered values are computed once per snapshot
+        PreferenceMatrix matrix = matrix();
+        CenteredItemMatrix view = matrix.centeredByItem();
+        int column1 = matrix.columnOrNegative(itemID1);
+        int column2 = matrix.columnOrNegative(itemID2);
+        if (column1 < 0 || column2 < 0)
             return 0.0;
-        }
-        int xLength = xPrefs.length();
-        int yLength = yPrefs.length();
 
-        if (xLength == 0 || yLength == 0) {
+        int x = view.columnStart(column1);
+        int xEnd = view.columnEnd(column1);
+        int y = view.columnStart(column2);
+        int yEnd = view.columnEnd(column2);
+        if (x == xEnd || y == yEnd)
             return Double.NaN;
-        }
-
-        long xIndex = xPrefs.getUserID(0);
-        long yIndex = yPrefs.getUserID(0);
-        int xPrefIndex = 0;
-        int yPrefIndex = 0;
 
-        double sumX = 0.0;
+        int[] rows = view.rows();
+        double[] values = view.centered();
+        double sumXY = 0.0;
         double sumX2 = 0.0;
-        double sumY = 0.0;
         double sumY2 = 0.0;
-        double sumXY = 0.0;
-        double sumXYdiff2 = 0.0;
         int count = 0;
-
-        // No, pref inferrers and transforms don't appy here. I think.
-
-        while (true) {
-            int compare = xIndex < yIndex ? -1 : xIndex > yIndex ? 1 : 0;
-            if (compare == 0) {
+        while (x < xEnd && y < yEnd) {
+            int rx = rows[x];
+            int ry = rows[y];
+            if (rx < ry) {
+                x++;
+            } else if (rx > ry) {
+                y++;
+            } else {
                 // Both users expressed a preference for the item
-                double x = xPrefs.getValue(xPrefIndex);
-                double y = yPrefs.getValue(yPrefIndex);
-                long xUserId = xPrefs.getUserID(xPrefIndex);
-                long yUserId = yPrefs.getUserID(yPrefIndex);
-
-                double xMean = averagePreference(dataModel.getPreferencesFromUser(xUserId));
-                double yMean = averagePreference(dataModel.getPreferencesFromUser(yUserId));
-
-                sumXY += (x - xMean) * (y - yMean);
-                sumX += x;
-                sumX2 += (x - xMean) * (x - xMean);
-                sumY += y;
-                sumY2 += (y - yMean) * (y - yMean);
-                double diff = x - y;
-                sumXYdiff2 += diff * diff;
+                double cx = values[x++];
+                double cy = values[y++];
+                sumXY += cx * cy;
+                sumX2 += cx * cx;
+                sumY2 += cy * cy;
                 count++;
             }
-            if (compare <= 0) {
-                if (++xPrefIndex == xLength) {
-                    break;
-                }
-                xIndex = xPrefs.getUserID(xPrefIndex);
-            }
-            if (compare >= 0) {
-                if (++yPrefIndex == yLength) {
-                    break;
-                }
-                yIndex = yPrefs.getUserID(yPrefIndex);
-            }
         }
 
-        double result;
-
-        // See comments above on these computations
-        double n = (double) count;
-        double meanX = sumX / n;
-        double meanY = sumY / n;
-        // double centeredSumXY = sumXY - meanY * sumX - meanX * sumY + n *
-        // meanX * meanY;
-        double centeredSumXY = sumXY - meanY * sumX;
-        // double centeredSumX2 = sumX2 - 2.0 * meanX * sumX + n * meanX *
-        // meanX;
-        double centeredSumX2 = sumX2 - meanX * sumX;
-        // double centeredSumY2 = sumY2 - 2.0 * meanY * sumY + n * meanY *
-        // meanY;
-        double centeredSumY2 = sumY2 - meanY * sumY;
-//      result = computeResult(count, centeredSumXY, centeredSumX2,
-//              centeredSumY2, sumXYdiff2);
-
-        result = computeResult(count, sumXY, sumX2, sumY2, sumXYdiff2);
-
-        if (!Double.isNaN(result)) {
-            result = normalizeWeightResult(result, count,
-                    dataModel.getNumUsers());
-        }
+        // Sum of the squared differences is not used by this measure
+        double result = computeResult(count, sumXY, sumX2, sumY2, 0.0);
+        if (!Double.isNaN(result))
+            result = normalizeWeightResult(result, count, matrix.numUsers());
         return result;
     }
 
@@ -0,0 +1,169 @@
+package com.uco.rs.recommender.similarity;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * Similarity matrix of the approximate mode, which only keeps the pairs of students that {@link StudentClusters}
+ * compares: the rest are NaN. The similarities are stored in one block for every pair of compared clusters, a packed
+ * triangle for a cluster with itself and a rectangle for two different clusters, so the memory is linear in the
+ * number of compared pairs instead of the square of the students.
+ *
+ * @author Aurora Esteban Toscano
+ */
+final class ClusteredSimilarityMatrix extends SimilarityMatrix {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    private final StudentClusters clusters;
+    // Position of every student among those of its cluster
+    private final int[] position;
+    // Number of students of every cluster
+    private final int[] sizes;
+    // Position in the blocks of the first similarity of the block of each pair of clusters, the first one not
+    // greater than the second, or -1 if they are not compared
+    private final long[][] offsets;
+    // Students of the clusters compared with each cluster, in increasing order
+    private final int[][] candidates;
+    // Similarities of all the blocks, one after another
+    private final SimilarityMatrix blocks;
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+    ClusteredSimilarityMatrix(StudentClusters clusters, SimilarityStorage storage) {
+        super(clusters.numStudents());
+        this.clusters = clusters;
+        int k = clusters.numClusters();
+
+        position = new int[size()];
+        sizes = new int[k];
+        for (int i = 0; i < size(); i++)
+            position[i] = sizes[clusters.clusterOf(i)]++;
+
+        offsets = new long[k][k];
+        long length = 0;
+        for (int a = 0; a < k; a++) {
+            Arrays.fill(offsets[a], -1L);
+            for (int b = a; b < k; b++) {
+                if (!clusters.nearby(a, b))
+                    continue;
+                offsets[a][b] = length;
+                length += a == b ? pairs(sizes[a]) : (long) sizes[a] * sizes[b];
+            }
+        }
+
+        int[][] members = new int[k][];
+        for (int c = 0; c < k; c++)
+            members[c] = new int[sizes[c]];
+        for (int i = 0; i < size(); i++)
+            members[clusters.clusterOf(i)][position[i]] = i;
+        candidates = new int[k][];
+        for (int a = 0; a < k; a++) {
+            int count = 0;
+            for (int b = 0; b < k; b++) {
+                if (clusters.nearby(a, b))
+                    count += sizes[b];
+            }
+            int[] students = new int[count];
+            int p = 0;
+            for (int b = 0; b < k; b++) {
+                if (clusters.nearby(a, b)) {
+                    System.arraycopy(members[b], 0, students, p, sizes[b]);
+                    p += sizes[b];
+                }
+            }
+            Arrays.sort(students);
+            candidates[a] = students;
+        }
+
+        // The storages are packed triangles, so the smallest one with room for every block
+        int blockSize = (int) Math.ceil((1.0 + Math.sqrt(1.0 + 8.0 * length)) / 2.0);
+        while (pairs(blockSize) < length)
+            blockSize++;
+        blocks = SimilarityMatrix.create(blockSize, storage);
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+    @Override
+    public double get(int i, int j) {
+        long index = blockIndex(i, j);
+        return index < 0 ? Double.NaN : blocks.getPacked(index);
+    }
+
+    /**
+     * Store the similarity between two different students, which must be compared
+     */
+    @Override
+    public void set(int i, int j, double similarity) {
+        long index = blockIndex(i, j);
+        Preconditions.checkArgument(index >= 0, "Students not compared: " + i + ", " + j);
+        blocks.setPacked(index, similarity);
+    }
+
+    /**
+     * Only the compared pairs are stored, so the similarities are not read by position in the packed triangle
+     */
+    @Override
+    double getPacked(long index) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    void setPacked(long index, double similarity) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    boolean stores(int i, int j) {
+        return clusters.compared(i, j);
+    }
+
+    @Override
+    int[] candidates(int element) {
+        return candidates[clusters.clusterOf(element)];
+    }
+
+    @Override
+    int numCandidates(int element) {
+        return candidates(element).length - 1;
+    }
+
+    @Override
+    SimilarityMatrix emptyLike(SimilarityStorage storage) {
+        return new ClusteredSimilarityMatrix(clusters, storage);
+    }
+
+    @Override
+    double stored(double similarity) {
+        return blocks.stored(similarity);
+    }
+
+    /**
+     * Position of the pair (i, j), with i != j, in the blocks, or -1 if they are not compared
+     */
+    private long blockIndex(int i, int j) {
+        int a = clusters.clusterOf(i);
+        int b = clusters.clusterOf(j);
+        if (a > b || (a == b && position[i] > position[j])) {
+            int tmp = i;
+            i = j;
+            j = tmp;
+            tmp = a;
+            a = b;
+            b = tmp;
+        }
+        long offset = offsets[a][b];
+        if (offset < 0)
+            return -1;
+        long pi = position[i];
+        long pj = position[j];
+        if (a == b)
+            return offset + pi * (2L * sizes[a] - pi - 1) / 2 + (pj - pi - 1);
+        return offset + pi * sizes[b] + pj;
+    }
+}
@@ -0,0 +1,352 @@
+package com.uco.rs.recommender.similarity;
+
+import com.google.common.hash.Hasher;
+import com.uco.rs.util.Parallel;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Dense low-dimensional embeddings of the contents of the subjects, stored as one contiguous row-major matrix with a
+ * unit-length row per subject, so the content similarity of two subjects is a fixed-width dot product. They are
+ * computed offline from the content vectors with one of:
+ * <ul>
+ * <li>Latent semantic analysis: truncated SVD of the matrix of normalized term frequencies, found by randomized
+ * subspace iteration over the sparse matrix, so that only a few dense vectors per subject and term are kept</li>
+ * <li>Random projection: product of the term frequencies by a random matrix of signs, which preserves the cosine
+ * similarities on average</li>
+ * </ul>
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class ContentEmbeddings {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    private final long[] subjectIDs;
+    private final int dimensions;
+    // Row i spans positions [i * dimensions, (i + 1) * dimensions)
+    private final float[] matrix;
+    // Subjects without contents, whose rows are all zeros
+    private final boolean[] empty;
+
+    // Columns added to the latent dimensions of the randomized SVD, and products by the matrix and its transpose
+    // that refine them, since the spectra of term frequencies decay slowly
+    private static final int OVERSAMPLING = 10;
+    private static final int POWER_ITERATIONS = 4;
+    private static final long LSA_SEED = 0x5eedL;
+
+    protected static final Logger log = LoggerFactory.getLogger(ContentEmbeddings.class);
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+    private ContentEmbeddings(long[] subjectIDs, int dimensions, float[] matrix) {
+        this.subjectIDs = subjectIDs;
+        this.dimensions = dimensions;
+        this.matrix = matrix;
+        this.empty = new boolean[subjectIDs.length];
+        for (int i = 0; i < subjectIDs.length; i++) {
+            empty[i] = true;
+            for (int d = 0; d < dimensions && empty[i]; d++)
+                empty[i] = matrix[i * dimensions + d] == 0f;
+        }
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+
+    /**
+     * Latent semantic analysis of the documentary database. With A the matrix of normalized term frequencies, an
+     * orthonormal basis Q of the range of A is found from the product of A by a random matrix, refined by power
+     * iterations. The SVD of the small matrix Q^T A, from the eigendecomposition of Q^T A A^T Q, then gives U * S.
+     * Time and memory are linear in the number of subjects and terms, times the dimensions.
+     *
+     * @param index      documentary database
+     * @param dimensions number of latent dimensions
+     */
+    public static ContentEmbeddings lsa(DocumentaryIndex index, int dimensions) throws IOException {
+        ContentVectorStore vectors = new ContentVectorStore(index);
+        int n = vectors.numSubjects();
+        int rank = Math.min(n, vectors.numTerms());
+        int k = Math.min(dimensions, rank);
+        int l = Math.min(k + OVERSAMPLING, rank);
+        if (k == 0)
+            return normalized(vectors, dimensions, new float[n * dimensions]);
+
+        // A times a random matrix of signs
+        double[][] basis = multiply(vectors, randomSigns(vectors.numTerms(), l));
+        orthonormalize(basis);
+        for (int iteration = 0; iteration < POWER_ITERATIONS; iteration++) {
+            double[][] termBasis = transposeMultiply(vectors, basis);
+            orthonormalize(termBasis);
+            basis = multiply(vectors, termBasis);
+            orthonormalize(basis);
+        }
+
+        // Q^T A A^T Q, whose eigenvectors W give U = Q * W and whose eigenvalues are S^2
+        double[][] projected = transposeMultiply(vectors, basis);
+        double[][] small = new double[l][l];
+        Parallel.forRange(l, a -> {
+            for (int b = 0; b < l; b++) {
+                double dot = 0.0;
+                for (int term = 0; term < projected[a].length; term++)
+                    dot += projected[a][term] * projected[b][term];
+                small[a][b] = dot;
+            }
+        });
+        EigenDecomposition eigen = new EigenDecomposition(new Array2DRowRealMatrix(small, false));
+        double[] eigenvalues = eigen.getRealEigenvalues();
+        Integer[] order = new Integer[eigenvalues.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparingDouble(i -> -eigenvalues[i]));
+
+        RealMatrix eigenvectors = eigen.getV();
+        float[] matrix = new float[n * dimensions];
+        double[][] finalBasis = basis;
+        Parallel.forRange(n, i -> {
+            for (int d = 0; d < k; d++) {
+                double singular = Math.sqrt(Math.max(0.0, eigenvalues[order[d]]));
+                double u = 0.0;
+                for (int c = 0; c < l; c++)
+                    u += finalBasis[c][i] * eigenvectors.getEntry(c, order[d]);
+                matrix[i * dimensions + d] = (float) (u * singular);
+            }
+        });
+        return normalized(vectors, dimensions, matrix);
+    }
+
+    /**
+     * Columns of random signs over the terms, hashed as in the random projection
+     */
+    private static double[][] randomSigns(int terms, int columns) {
+        double[][] signs = new double[columns][terms];
+        Parallel.forRange(columns, c -> {
+            for (int term = 0; term < terms; term++)
+                signs[c][term] = mix(LSA_SEED ^ ((long) term * columns + c)) < 0 ? -1.0 : 1.0;
+        });
+        return signs;
+    }
+
+    /**
+     * Product of the matrix of normalized term frequencies by some columns over the terms
+     *
+     * @return columns over the subjects
+     */
+    private static double[][] multiply(ContentVectorStore vectors, double[][] columns) {
+        int[] terms = vectors.terms();
+        float[] weights = vectors.weights();
+        double[][] result = new double[columns.length][vectors.numSubjects()];
+        Parallel.forRange(vectors.numSubjects(), i -> {
+            for (int p = vectors.vectorStart(i); p < vectors.vectorEnd(i); p++) {
+                for (int c = 0; c < columns.length; c++)
+                    result[c][i] += weights[p] * columns[c][terms[p]];
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Product of the transpose of the matrix of normalized term frequencies by some columns over the subjects
+     *
+     * @return columns over the terms
+     */
+    private static double[][] transposeMultiply(ContentVectorStore vectors, double[][] columns) {
+        int[] terms = vectors.terms();
+        float[] weights = vectors.weights();
+        double[][] result = new double[columns.length][vectors.numTerms()];
+        Parallel.forRange(columns.length, c -> {
+            for (int i = 0; i < vectors.numSubjects(); i++) {
+                for (int p = vectors.vectorStart(i); p < vectors.vectorEnd(i); p++)
+                    result[c][terms[p]] += weights[p] * columns[c][i];
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Orthonormalize some columns in place with modified Gram-Schmidt, twice for stability. Columns that depend on
+     * the previous ones are left as zeros.
+     */
+    private static void orthonormalize(double[][] columns) {
+        for (int pass = 0; pass < 2; pass++) {
+            for (int c = 0; c < columns.length; c++) {
+                double[] column = columns[c];
+                for (int previous = 0; previous < c; previous++) {
+                    double dot = 0.0;
+                    for (int i = 0; i < column.length; i++)
+                        dot += column[i] * columns[previous][i];
+                    for (int i = 0; i < column.length; i++)
+                        column[i] -= dot * columns[previous][i];
+                }
+                double norm = 0.0;
+                for (double value : column)
+                    norm += value * value;
+                norm = Math.sqrt(norm);
+                for (int i = 0; i < column.length; i++)
+                    column[i] = norm > 1e-10 ? column[i] / norm : 0.0;
+            }
+        }
+    }
+
+    /**
+     * Random projection of the documentary database
+     *
+     * @param index      documentary database
+     * @param dimensions number of dimensions of the projection
+     * @param seed       seed of the random matrix
+     */
+    public static ContentEmbeddings randomProjection(DocumentaryIndex index, int dimensions, long seed)
+            throws IOException {
+        ContentVectorStore vectors = new ContentVectorStore(index);
+        int n = vectors.numSubjects();
+        int[] terms = vectors.terms();
+        float[] weights = vectors.weights();
+
+        // The sign of each entry of the random matrix is a hash of its term and dimension, so it is never stored
+        float[] matrix = new float[n * dimensions];
+        Parallel.forRange(n, i -> {
+            for (int p = vectors.vectorStart(i); p < vectors.vectorEnd(i); p++) {
+                long term = (long) terms[p] * dimensions;
+                for (int d = 0; d < dimensions; d++) {
+                    long bits = mix(seed ^ (term + d));
+                    matrix[i * dimensions + d] += bits < 0 ? -weights[p] : weights[p];
+                }
+            }
+        });
+        return normalized(vectors, dimensions, matrix);
+    }
+
+    private static ContentEmbeddings normalized(ContentVectorStore vectors, int dimensions, float[] matrix) {
+        int n = vectors.numSubjects();
+        long[] subjectIDs = new long[n];
+        for (int i = 0; i < n; i++) {
+            subjectIDs[i] = vectors.subjectID(i);
+            double norm = 0.0;
+            for (int d = 0; d < dimensions; d++)
+                norm += (double) matrix[i * dimensions + d] * matrix[i * dimensions + d];
+            norm = Math.sqrt(norm);
+            for (int d = 0; d < dimensions && norm > 0.0; d++)
+                matrix[i * dimensions + d] /= norm;
+        }
+        return new ContentEmbeddings(subjectIDs, dimensions, matrix);
+    }
+
+    /**
+     * Read embeddings written by {@link #write(File)}
+     */
+    public static ContentEmbeddings read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int n = in.readInt();
+            int dimensions = in.readInt();
+            long[] subjectIDs = new long[n];
+            for (int i = 0; i < n; i++)
+                subjectIDs[i] = in.readLong();
+            float[] matrix = new float[n * dimensions];
+            for (int i = 0; i < matrix.length; i++)
+                matrix[i] = in.readFloat();
+            log.info("Content embeddings of {} subjects in {} dimensions loaded from {}", n, dimensions, file);
+            return new ContentEmbeddings(subjectIDs, dimensions, matrix);
+        }
+    }
+
+    /**
+     * Store the embeddings: number of subjects and dimensions, subject IDs in increasing order and the matrix by rows
+     */
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(subjectIDs.length);
+            out.writeInt(dimensions);
+            for (long id : subjectIDs)
+                out.writeLong(id);
+            for (float value : matrix)
+                out.writeFloat(value);
+        }
+    }
+
+    /**
+     * Cosine similarity between the embeddings of two subjects
+     *
+     * @return similarity, 0 if any of the subjects is not in the database or NaN if any of them has no contents
+     */
+    public double similarity(long subject1, long subject2) {
+        int x = Arrays.binarySearch(subjectIDs, subject1);
+        int y = Arrays.binarySearch(subjectIDs, subject2);
+        if (x < 0 || y < 0)
+            return 0.0;
+        return dot(x, y);
+    }
+
+    /**
+     * Cosine similarity between the embeddings of one subject and many others
+     */
+    public double[] similarities(long subject, long[] others) {
+        double[] result = new double[others.length];
+        int x = Arrays.binarySearch(subjectIDs, subject);
+        if (x < 0)
+            return result;
+        for (int i = 0; i < others.length; i++) {
+            int y = Arrays.binarySearch(subjectIDs, others[i]);
+            result[i] = y < 0 ? 0.0 : dot(x, y);
+        }
+        return result;
+    }
+
+    private double dot(int x, int y) {
+        if (empty[x] || empty[y])
+            return Double.NaN;
+        int a = x * dimensions;
+        int b = y * dimensions;
+        double dot = 0.0;
+        for (int d = 0; d < dimensions; d++)
+            dot += (double) matrix[a + d] * matrix[b + d];
+        return dot;
+    }
+
+    public int numSubjects() {
+        return subjectIDs.length;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Feed the whole content of the embeddings to a hash function
+     */
+    void hash(Hasher hasher) {
+        hasher.putInt(subjectIDs.length).putInt(dimensions);
+        for (long subjectID : subjectIDs)
+            hasher.putLong(subjectID);
+        for (float value : matrix)
+            hasher.putFloat(value);
+    }
+
+    /**
+     * Finalization step of MurmurHash3, used as a 64 bits hash function
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
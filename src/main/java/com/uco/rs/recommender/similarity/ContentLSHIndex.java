@@ -0,0 +1,151 @@
+package com.uco.rs.recommender.similarity;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Locality sensitive hashing index over the term sets of the content vectors. Every subject gets a MinHash signature
+ * of bands * rows values, and each band of the signature is hashed into a bucket. Subjects sharing a bucket in any
+ * band are candidates to be similar: a pair with a Jaccard coefficient j between their term sets becomes a candidate
+ * with probability 1 - (1 - j^rows)^bands.
+ *
+ * Buckets of a band are kept as a sorted array of keys, so retrieving the candidates of a subject costs a binary
+ * search per band plus the size of its buckets, instead of a pass over the whole catalogue.
+ *
+ * @author Aurora Esteban Toscano
+ */
+final class ContentLSHIndex {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    private final int bands;
+    private final int rows;
+    // Bucket key of every vector per band (keys[band][vector]), and per band the vectors ordered by key along with
+    // their keys, so a bucket is a run of equal keys
+    private final long[][] keys;
+    private final int[][] sortedVectors;
+    private final long[][] sortedKeys;
+
+    protected static final Logger log = LoggerFactory.getLogger(ContentLSHIndex.class);
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+
+    /**
+     * Hash all the vectors of a store
+     *
+     * @param store content vectors
+     * @param bands number of bands of the signatures
+     * @param rows  number of MinHash values per band
+     * @param seed  seed of the hash functions
+     */
+    ContentLSHIndex(ContentVectorStore store, int bands, int rows, long seed) {
+        long start = System.currentTimeMillis();
+        this.bands = bands;
+        this.rows = rows;
+
+        int n = store.numSubjects();
+        long[] seeds = new long[bands * rows];
+        Random random = new Random(seed);
+        for (int h = 0; h < seeds.length; h++)
+            seeds[h] = random.nextLong();
+
+        keys = new long[bands][n];
+        int[] terms = store.terms();
+        long[] signature = new long[seeds.length];
+        for (int v = 0; v < n; v++) {
+            Arrays.fill(signature, Long.MAX_VALUE);
+            for (int p = store.vectorStart(v); p < store.vectorEnd(v); p++) {
+                for (int h = 0; h < seeds.length; h++) {
+                    long value = mix(terms[p] ^ seeds[h]);
+                    if (value < signature[h])
+                        signature[h] = value;
+                }
+            }
+            for (int b = 0; b < bands; b++) {
+                long key = b;
+                for (int r = 0; r < rows; r++)
+                    key = mix(key * 31 + signature[b * rows + r]);
+                keys[b][v] = key;
+            }
+        }
+
+        sortedVectors = new int[bands][];
+        sortedKeys = new long[bands][];
+        for (int b = 0; b < bands; b++) {
+            long[] band = keys[b];
+            Integer[] order = new Integer[n];
+            for (int v = 0; v < n; v++)
+                order[v] = v;
+            Arrays.sort(order, (x, y) -> Long.compare(band[x], band[y]));
+            sortedVectors[b] = new int[n];
+            sortedKeys[b] = new long[n];
+            for (int i = 0; i < n; i++) {
+                sortedVectors[b][i] = order[i];
+                sortedKeys[b][i] = band[order[i]];
+            }
+        }
+        log.info("LSH index of {} subjects with {} bands of {} rows built in {} ms", n, bands, rows,
+                System.currentTimeMillis() - start);
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+
+    /**
+     * Vectors that share a bucket with the given one in any band, including itself
+     *
+     * @param vector position of the vector in the store
+     * @return positions of the candidates, without repetitions and in increasing order
+     */
+    int[] candidates(int vector) {
+        int[] result = new int[16];
+        int size = 0;
+        for (int b = 0; b < bands; b++) {
+            long key = keys[b][vector];
+            long[] band = sortedKeys[b];
+            int first = Arrays.binarySearch(band, key);
+            while (first > 0 && band[first - 1] == key)
+                first--;
+            for (int i = first; i < band.length && band[i] == key; i++) {
+                if (size == result.length)
+                    result = Arrays.copyOf(result, 2 * size);
+                result[size++] = sortedVectors[b][i];
+            }
+        }
+
+        Arrays.sort(result, 0, size);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || result[unique - 1] != result[i])
+                result[unique++] = result[i];
+        }
+        return Arrays.copyOf(result, unique);
+    }
+
+    int getBands() {
+        return bands;
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    /**
+     * Finalization step of MurmurHash3, used as a 64 bits hash function
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,42 +1,30 @@
 package com.uco.rs.recommender.similarity;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.uco.rs.util.PathLoader;
 import org.apache.commons.configuration2.Configuration;
-import org.apache.commons.lang3.math.NumberUtils;
-import org.apache.commons.math3.linear.ArrayRealVector;
-import org.apache.commons.math3.linear.RealVector;
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.CharArraySet;
-import org.apache.lucene.analysis.es.SpanishAnalyzer;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.Terms;
-import org.apache.lucene.index.TermsEnum;
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.BytesRef;
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.*;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 /**
- * Item based similarity for subjects based on common contents
+ * Item based similarity for subjects based on common contents. It keeps the documentary database open, and its
+ * background refresh if configured, until it is closed.
  *
  * @author Aurora Esteban Toscano
  */
-public class ContentSimilarity implements ItemSimilarity {
+public class ContentSimilarity implements ItemSimilarity, Closeable {
 
     //////////////////////////////////////////////
     // -------------------------------- Variables
@@ -44,15 +32,29 @@ public class ContentSimilarity implements ItemSimilarity {
 
     protected static final Logger log = LoggerFactory.getLogger(ContentSimilarity.class);
 
-    private IndexReader reader;
-    private IndexSearcher searcher;
+    private DocumentaryIndex index;
+    // Rebuilt when the documentary database is refreshed
+    private volatile ContentVectorStore vectors;
+    // Dense embeddings that replace the term vectors to compare subjects, if configured
+    private ContentEmbeddings embeddings;
 
-    private Analyzer analyzer;
+    // Minimum content similarity of the subjects returned by allSimilarItemIDs
+    private double threshold;
+    // Shape of the LSH signatures, and the index itself, built on first use
+    private int lshBands;
+    private int lshRows;
+    private ContentLSHIndex lsh;
+    private ContentVectorStore lshVectors;
+
+    private final List<Consumer<long[]>> listeners = new CopyOnWriteArrayList<>();
 
     //////////////////////////////////////////////
     // ---------------------------------- Methods
     /////////////////////////////////////////////
     ContentSimilarity(Configuration config) {
+        threshold = config.getDouble("contentThreshold", 0.3);
+        lshBands = config.getInt("lshBands", 150);
+        lshRows = config.getInt("lshRows", 2);
 
         File database = PathLoader.getConfigPath(config.getString("documentaryDB"));
         if (!database.isDirectory()) {
@@ -61,144 +63,161 @@ public class ContentSimilarity implements ItemSimilarity {
         }
 
         // Access to the document store
-        Directory dir = null;
+        log.info("Loading documentary database from " + database.getAbsolutePath());
         try {
-            dir = FSDirectory.open(Paths.get(database.getAbsolutePath()));
-        } catch (IOException e1) {
-            e1.printStackTrace();
+            index = new DocumentaryIndex(database);
+        } catch (IOException e) {
+            e.printStackTrace();
             System.exit(-1);
         }
-        log.info("Loading documentary database from " + database.getAbsolutePath());
 
-        // Create the index reader and search
-        reader = null;
+        // Term vectors of all the subjects, read once per version of the index
         try {
-            reader = DirectoryReader.open(dir);
+            vectors = loadVectors();
+            if (config.containsKey("contentEmbeddings"))
+                embeddings = ContentEmbeddings.read(PathLoader.getConfigPath(config.getString("contentEmbeddings")));
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(-1);
         }
-        searcher = new IndexSearcher(reader);
-        analyzer = createAnalyzer();
+        if (embeddings != null)
+            log.warn("Content embeddings are not updated when the documentary database changes");
+
+        index.addListener(this::contentsChanged);
+        long refreshSeconds = config.getLong("refreshSeconds", 0L);
+        if (refreshSeconds > 0)
+            index.startRefreshing(refreshSeconds);
     }
 
+    /**
+     * Compute the similarities of a subject with many others in a single pass over the inverted lists of its terms
+     */
     @Override
     public double[] itemSimilarities(long subject1, long[] others) {
+        if (embeddings != null)
+            return embeddings.similarities(subject1, others);
+
+        ContentVectorStore vectors = this.vectors;
         double[] result = new double[others.length];
+        int vector = vectors.indexOf(subject1);
+        if (vector < 0)
+            return result;
+
+        double[] scores = new double[vectors.numSubjects()];
+        vectors.cosineToAll(vector, scores);
         for (int i = 0; i < others.length; i++) {
-            result[i] = itemSimilarity(subject1, others[i]);
+            int other = vectors.indexOf(others[i]);
+            result[i] = other < 0 ? 0.0 : scores[other];
         }
         return result;
     }
 
     /**
-     * Compute a similarity based on boolean existence of commons teachers and commons skills in two
-     * subjects, as well as benefit if they belong to the same department.
+     * Compute the cosine similarity between the term frequencies of the contents of two subjects, or between their
+     * embeddings if they are configured
      */
     @Override
     public double itemSimilarity(long subject1, long subject2) {
-        QueryParser parser = new QueryParser("Id", analyzer);
-        Query q1 = null, q2 = null;
-        try {
-            q1 = parser.parse(QueryParser.escape(String.valueOf(subject1)));
-            q2 = parser.parse(QueryParser.escape(String.valueOf(subject2)));
-        } catch (ParseException e) {
-            e.printStackTrace();
-        }
-        TopDocs td1 = null, td2 = null;
-        try {
-            td1 = searcher.search(q1, 1);
-            td2 = searcher.search(q2, 1);
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(-1);
-        }
-        double similarity = 0.0;
-        if (td1.scoreDocs.length > 0 && td2.scoreDocs.length > 0) {
-            Map<String, Integer> frequencies1 = getTermFrequencies(td1.scoreDocs[0].doc);
-            Map<String, Integer> frequencies2 = getTermFrequencies(td2.scoreDocs[0].doc);
-
-            Set<String> terms = new HashSet<>(frequencies1.keySet());
-            terms.addAll(frequencies2.keySet());
-
-            RealVector freq1 = toRealVector(frequencies1, terms);
-            RealVector freq2 = toRealVector(frequencies2, terms);
-
-            similarity = computeCosineSimilarity(freq1, freq2);
-        }
-
-        return similarity;
+        if (embeddings != null)
+            return embeddings.similarity(subject1, subject2);
+        return vectors.similarity(subject1, subject2);
     }
 
     @Override
     public long[] allSimilarItemIDs(long subject) {
-        return null;
+        return allSimilarItemIDs(subject, threshold);
     }
 
-    @Override
-    public void refresh(Collection<Refreshable> arg0) {
+    /**
+     * Subjects whose content similarity with the given one is above a threshold. Candidates come from the LSH index,
+     * so subjects with few terms in common may be missed, and they are verified with their exact similarity.
+     *
+     * @param subject   ID of the subject
+     * @param threshold minimum similarity
+     * @return IDs of the similar subjects, including the given one
+     */
+    long[] allSimilarItemIDs(long subject, double threshold) {
+        ContentVectorStore vectors = this.vectors;
+        int vector = vectors.indexOf(subject);
+        if (vector < 0)
+            return new long[0];
+
+        int[] candidates = getLSH(vectors).candidates(vector);
+        long[] similars = new long[candidates.length];
+        int size = 0;
+        for (int candidate : candidates) {
+            if (vectors.cosine(vector, candidate) > threshold)
+                similars[size++] = vectors.subjectID(candidate);
+        }
+        return Arrays.copyOf(similars, size);
     }
 
-    private static Analyzer createAnalyzer() {
-        // Configure stop words
-        CharArraySet analyzerConfig = SpanishAnalyzer.getDefaultStopSet();
-        File stopWordsFile = PathLoader.getConfigPath("stopWords.txt");
-        List<String> domainStopSet = null;
-        try {
-            domainStopSet = Files.readAllLines(stopWordsFile.toPath());
-        } catch (IOException e2) {
-            e2.printStackTrace();
+    /**
+     * LSH index of a version of the content vectors, built on first use
+     */
+    private synchronized ContentLSHIndex getLSH(ContentVectorStore vectors) {
+        if (lsh == null || lshVectors != vectors) {
+            lsh = new ContentLSHIndex(vectors, lshBands, lshRows, 0L);
+            lshVectors = vectors;
         }
-        assert domainStopSet != null;
-        analyzerConfig.addAll(domainStopSet);
+        return lsh;
+    }
 
-        // Create Spanish analyzer
-        return new SpanishAnalyzer(analyzerConfig);
+    /**
+     * Fingerprint of the current contents, to tell apart the matrices computed from them
+     */
+    String fingerprint() {
+        Hasher hasher = Hashing.sha1().newHasher();
+        vectors.hash(hasher);
+        if (embeddings != null)
+            embeddings.hash(hasher);
+        return hasher.hash().toString();
     }
 
     /**
-     * Transform term vector to frequencies of an index
+     * Register a listener that receives the IDs of the subjects whose contents changed after a refresh of the
+     * documentary database, or null if any of them may have changed
      */
-    private Map<String, Integer> getTermFrequencies(int docId) {
-        Terms vector;
-        TermsEnum termsEnum;
-        Map<String, Integer> frequencies = new HashMap<>();
+    void addListener(Consumer<long[]> listener) {
+        listeners.add(listener);
+    }
+
+    private ContentVectorStore loadVectors() throws IOException {
+        // The index must not be refreshed while its vectors are read
+        synchronized (index) {
+            return new ContentVectorStore(index);
+        }
+    }
+
+    private void contentsChanged(long[] subjects) {
         try {
-            vector = reader.getTermVector(docId, "Content");
-            termsEnum = vector.iterator();
-            BytesRef text;
-            while ((text = termsEnum.next()) != null) {
-                String term = text.utf8ToString();
-                // Filter numbers
-                if (!NumberUtils.isNumber(term)) {
-                    int freq = (int) termsEnum.totalTermFreq();
-                    frequencies.put(term, freq);
-                }
-            }
+            vectors = loadVectors();
         } catch (IOException e) {
             e.printStackTrace();
+            return;
         }
-
-        return frequencies;
+        for (Consumer<long[]> listener : listeners)
+            listener.accept(subjects);
     }
 
     /**
-     * Transform a count of terms to its frequencies
+     * Close the documentary database and stop its background refresh. The similarities can still be read, but
+     * they are no longer updated.
      */
-    private RealVector toRealVector(Map<String, Integer> map, Set<String> terms) {
-        RealVector vector = new ArrayRealVector(terms.size());
-        int i = 0;
-        for (String term : terms) {
-            int value = map.getOrDefault(term, 0);
-            vector.setEntry(i++, value);
-        }
-        return vector.mapDivide(vector.getL1Norm());
+    @Override
+    public void close() throws IOException {
+        index.close();
     }
 
     /**
-     * Compute cosine similarity to a pair of vectors
+     * Reopen the documentary database if it has been updated
      */
-    private double computeCosineSimilarity(RealVector v1, RealVector v2) {
-        return (v1.dotProduct(v2)) / (v1.getNorm() * v2.getNorm());
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        try {
+            index.maybeRefresh();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
-}
\ No newline at end of file
+}
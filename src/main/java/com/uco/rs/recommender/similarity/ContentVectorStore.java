@@ -0,0 +1,263 @@
+package com.uco.rs.recommender.similarity;
+
+import com.google.common.hash.Hasher;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Term frequency vectors of the contents of every subject in the documentary database, read once from the index.
+ * Terms are interned to int IDs that follow the order of the index dictionary, and each subject is kept as a sparse
+ * vector of increasing term IDs and L2-normalized frequencies, so the cosine of two subjects is a plain merge.
+ *
+ * @author Aurora Esteban Toscano
+ */
+final class ContentVectorStore {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    private final long[] subjectIDs;
+    // Vector of subject i spans positions [vectorStart[i], vectorStart[i + 1]) of terms and weights
+    private final int[] vectorStart;
+    private final int[] terms;
+    private final float[] weights;
+    private final int numTerms;
+    // Inverted lists: postings of term t span positions [postingStart[t], postingStart[t + 1]) of postingVectors and
+    // postingWeights, in increasing order of vectors
+    private final int[] postingStart;
+    private final int[] postingVectors;
+    private final float[] postingWeights;
+
+    protected static final Logger log = LoggerFactory.getLogger(ContentVectorStore.class);
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+
+    /**
+     * Read the term vectors of all the subjects of the index
+     *
+     * @param index documentary database
+     */
+    ContentVectorStore(DocumentaryIndex index) throws IOException {
+        long start = System.currentTimeMillis();
+        IndexReader reader = index.getReader();
+
+        // Intern the terms in dictionary order, discarding numbers
+        Map<BytesRef, Integer> termIDs = new HashMap<>();
+        Terms dictionary = MultiFields.getTerms(reader, DocumentaryIndex.CONTENT_FIELD);
+        if (dictionary != null) {
+            TermsEnum termsEnum = dictionary.iterator();
+            BytesRef text;
+            while ((text = termsEnum.next()) != null) {
+                if (!NumberUtils.isNumber(text.utf8ToString()))
+                    termIDs.put(BytesRef.deepCopyOf(text), termIDs.size());
+            }
+        }
+        numTerms = termIDs.size();
+
+        // One vector per subject, in the order of the subject IDs
+        int n = index.numSubjects();
+        int[] allTerms = new int[16];
+        float[] allWeights = new float[16];
+        int[] starts = new int[n + 1];
+        int size = 0;
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = index.subjectID(i);
+            Terms vector = reader.getTermVector(index.docAt(i), DocumentaryIndex.CONTENT_FIELD);
+            int from = size;
+            if (vector != null) {
+                TermsEnum termsEnum = vector.iterator();
+                BytesRef text;
+                while ((text = termsEnum.next()) != null) {
+                    Integer term = termIDs.get(text);
+                    if (term == null)
+                        continue;
+                    if (size == allTerms.length) {
+                        allTerms = Arrays.copyOf(allTerms, 2 * size);
+                        allWeights = Arrays.copyOf(allWeights, 2 * size);
+                    }
+                    allTerms[size] = term;
+                    allWeights[size] = termsEnum.totalTermFreq();
+                    size++;
+                }
+            }
+            normalize(allWeights, from, size);
+            starts[i + 1] = size;
+        }
+
+        subjectIDs = ids;
+        vectorStart = starts;
+        terms = Arrays.copyOf(allTerms, size);
+        weights = Arrays.copyOf(allWeights, size);
+
+        // Transpose the vectors into inverted lists
+        postingStart = new int[numTerms + 1];
+        for (int term : terms)
+            postingStart[term + 1]++;
+        for (int t = 0; t < numTerms; t++)
+            postingStart[t + 1] += postingStart[t];
+        postingVectors = new int[size];
+        postingWeights = new float[size];
+        int[] next = Arrays.copyOf(postingStart, numTerms);
+        for (int v = 0; v < n; v++) {
+            for (int p = vectorStart[v]; p < vectorStart[v + 1]; p++) {
+                int position = next[terms[p]]++;
+                postingVectors[position] = v;
+                postingWeights[position] = weights[p];
+            }
+        }
+        log.info("Content vectors of {} subjects over {} terms loaded in {} ms", n, numTerms,
+                System.currentTimeMillis() - start);
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+
+    /**
+     * Cosine similarity between the contents of two subjects
+     *
+     * @return similarity, 0 if any of the subjects is not in the database or NaN if any of them has no terms
+     */
+    double similarity(long subject1, long subject2) {
+        int x = Arrays.binarySearch(subjectIDs, subject1);
+        int y = Arrays.binarySearch(subjectIDs, subject2);
+        if (x < 0 || y < 0)
+            return 0.0;
+        return cosine(x, y);
+    }
+
+    /**
+     * Cosine similarity between two vectors of the store
+     */
+    double cosine(int vector1, int vector2) {
+        int x = vectorStart[vector1];
+        int xEnd = vectorStart[vector1 + 1];
+        int y = vectorStart[vector2];
+        int yEnd = vectorStart[vector2 + 1];
+        if (x == xEnd || y == yEnd)
+            return Double.NaN;
+
+        double dot = 0.0;
+        while (x < xEnd && y < yEnd) {
+            int tx = terms[x];
+            int ty = terms[y];
+            if (tx < ty) {
+                x++;
+            } else if (tx > ty) {
+                y++;
+            } else {
+                dot += (double) weights[x++] * weights[y++];
+            }
+        }
+        return dot;
+    }
+
+    /**
+     * Cosine similarity of one vector against all the vectors of the store, accumulating term at a time over the
+     * inverted lists of its terms. Each score adds the same products in the same order as {@link #cosine(int, int)},
+     * so both give the same values.
+     *
+     * @param vector position of the vector in the store
+     * @param scores array of {@link #numSubjects()} positions where the similarities are written
+     */
+    void cosineToAll(int vector, double[] scores) {
+        if (vectorStart[vector] == vectorStart[vector + 1]) {
+            Arrays.fill(scores, 0, numSubjects(), Double.NaN);
+            return;
+        }
+
+        Arrays.fill(scores, 0, numSubjects(), 0.0);
+        for (int p = vectorStart[vector]; p < vectorStart[vector + 1]; p++) {
+            double weight = weights[p];
+            int term = terms[p];
+            for (int q = postingStart[term]; q < postingStart[term + 1]; q++)
+                scores[postingVectors[q]] += weight * postingWeights[q];
+        }
+        for (int v = 0; v < numSubjects(); v++) {
+            if (vectorStart[v] == vectorStart[v + 1])
+                scores[v] = Double.NaN;
+        }
+    }
+
+    /**
+     * First position of a vector in {@link #terms()}
+     */
+    int vectorStart(int vector) {
+        return vectorStart[vector];
+    }
+
+    /**
+     * Position following the last one of a vector in {@link #terms()}
+     */
+    int vectorEnd(int vector) {
+        return vectorStart[vector + 1];
+    }
+
+    /**
+     * Term IDs of every vector, grouped by vector. Shared array that must not be modified.
+     */
+    int[] terms() {
+        return terms;
+    }
+
+    /**
+     * Normalized frequencies of every vector, grouped by vector. Shared array that must not be modified.
+     */
+    float[] weights() {
+        return weights;
+    }
+
+    /**
+     * Position of a subject in the store, or a negative value if it is not in the database
+     */
+    int indexOf(long subject) {
+        return Arrays.binarySearch(subjectIDs, subject);
+    }
+
+    long subjectID(int vector) {
+        return subjectIDs[vector];
+    }
+
+    int numSubjects() {
+        return subjectIDs.length;
+    }
+
+    int numTerms() {
+        return numTerms;
+    }
+
+    /**
+     * Feed the whole content of the store to a hash function
+     */
+    void hash(Hasher hasher) {
+        hasher.putInt(subjectIDs.length).putInt(numTerms);
+        for (int vector = 0; vector < subjectIDs.length; vector++) {
+            hasher.putLong(subjectIDs[vector]);
+            for (int p = vectorStart[vector]; p < vectorStart[vector + 1]; p++)
+                hasher.putInt(terms[p]).putFloat(weights[p]);
+        }
+    }
+
+    private static void normalize(float[] weights, int from, int to) {
+        double norm = 0.0;
+        for (int i = from; i < to; i++)
+            norm += (double) weights[i] * weights[i];
+        norm = Math.sqrt(norm);
+        for (int i = from; i < to; i++)
+            weights[i] = (float) (weights[i] / norm);
+    }
+}
@@ -1,11 +1,12 @@
 package com.uco.rs.recommender.similarity;
 
-import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.uco.rs.util.ClassInstantiator;
+import com.uco.rs.util.Parallel;
 import org.apache.commons.configuration2.Configuration;
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
-import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
 import org.apache.mahout.cf.taste.model.DataModel;
@@ -14,32 +15,37 @@ import org.apache.mahout.cf.taste.similarity.UserSimilarity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * Item based similarity for subjects using multiple criteria: teachers
- * department skills or their program contents
+ * department skills or their program contents. With contents, it must be closed when it is no longer used, to
+ * release the documentary database.
  *
  * @author Aurora Esteban Toscano
  */
-public class CourseSimilarity implements ItemSimilarity {
+public class CourseSimilarity implements ItemSimilarity, Closeable {
 
     //////////////////////////////////////////////
     // -------------------------------- Variables
     /////////////////////////////////////////////
-    private static ThreadLocal<DataModel> professors = new ThreadLocal<>();
-    private static ThreadLocal<DataModel> competences = new ThreadLocal<>();
-    private static DataModel areas;
+    private final DataModel professors;
+    private final DataModel competences;
+    private final DataModel areas;
 
     private String professorsSimilarityName;
     private String competencesSimilarityName;
 
-    // Single criteria similarities
-    private static UserSimilarity professorSimilarity;
-    private static UserSimilarity competenceSimilarity;
-    private static ItemSimilarity contentSimilarity;
+    // Content similarity, the only criterion that can change while the recommender runs
+    private ContentSimilarity contentSimilarity;
 
     // Importance of each criteria in final similarity in [0,1]
     private double wProfessors;
@@ -47,10 +53,24 @@ public class CourseSimilarity implements ItemSimilarity {
     private double wCompetences;
     private double wContent;
 
+    // How the final similarities are stored
+    private SimilarityStorage storage;
+
     // Threshold to consider two subjects similar
     private static final double THRESHOLD = 0.3;
 
-    private final FastByIDMap<FastByIDMap<Double>> similarityMaps = new FastByIDMap<>();
+    // Subjects of the matrix in increasing order
+    private final long[] subjects;
+    // Replaced as a whole when every similarity is recomputed
+    private volatile SimilarityMatrix matrix;
+
+    // Notified after the similarities are updated with new contents
+    private final List<Consumer<long[]>> listeners = new CopyOnWriteArrayList<>();
+
+    // Single criterion similarities between the subjects, shared with other instances
+    private final SimilarityComponents components;
+
+    private static final String CACHE_NAME = "course";
 
     protected static final Logger log = LoggerFactory.getLogger(CourseSimilarity.class);
 
@@ -58,102 +78,117 @@ public class CourseSimilarity implements ItemSimilarity {
     // ------------------------------ Constructor
     /////////////////////////////////////////////
     public CourseSimilarity(DataModel professors, DataModel areas, DataModel competences, Configuration config) {
+        this(professors, areas, competences, config, new SimilarityComponents(4));
+    }
+
+    /**
+     * Multi-criteria similarity that takes its single criterion similarities from a store, where they are left for
+     * other instances computed from the same data
+     */
+    public CourseSimilarity(DataModel professors, DataModel areas, DataModel competences, Configuration config,
+                            SimilarityComponents components) {
         configure(config);
+        this.components = components;
 
-        CourseSimilarity.professors.set(professors);
-        CourseSimilarity.competences.set(competences);
-        CourseSimilarity.areas = areas;
+        this.professors = professors;
+        this.competences = competences;
+        this.areas = areas;
 
-        if (wProfessors > 0d)
-            professorSimilarity = ClassInstantiator.instantiateUserSimilarity(professorsSimilarityName,
-                    CourseSimilarity.professors.get());
-        if (wCompetences > 0d)
-            competenceSimilarity = ClassInstantiator.instantiateUserSimilarity(competencesSimilarityName,
-                    CourseSimilarity.competences.get());
         if (wContent > 0.0)
             contentSimilarity = new ContentSimilarity(config);
+        subjects = SimilarityMatrix.sortedIDs(getSubjects());
+
+        // Similarities computed before from the same data, contents and configuration
+        SimilarityCache cache = SimilarityCache.fromConfig(config);
+        String fingerprint = null;
+        if (cache != null) {
+            try {
+                fingerprint = SimilarityCache.fingerprint(config,
+                        contentSimilarity == null ? "" : contentSimilarity.fingerprint(),
+                        professors, areas, competences);
+            } catch (TasteException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+            matrix = cache.load(CACHE_NAME, fingerprint, subjects, storage);
+        }
 
-        log.info("Computing similarity based on subjects");
-        computeFinalSimilarities();
+        if (matrix == null) {
+            log.info("Computing similarity based on subjects");
+            computeFinalSimilarities();
+            if (cache != null)
+                cache.store(CACHE_NAME, fingerprint, subjects, matrix);
+        }
+        if (wContent > 0.0)
+            contentSimilarity.addListener(this::contentsChanged);
     }
 
     //////////////////////////////////////////////
     // ---------------------------------- Methods
     /////////////////////////////////////////////
     private void computeFinalSimilarities() {
-        LongPrimitiveIterator rows = getSubjects();
-
-        class Wrapper implements Callable<Double[]> {
-            private long subject1, subject2;
-
-            private Wrapper(long sb1, long sb2) {
-                this.subject1 = sb1;
-                this.subject2 = sb2;
-            }
+        SimilarityMatrix professors = professorComponent();
+        SimilarityMatrix contents = contentComponent();
+        SimilarityMatrix areas = areaComponent();
+        SimilarityMatrix competences = competenceComponent();
+
+        SimilarityMatrix matrix = SimilarityMatrix.create(subjects.length, storage);
+        Parallel.forRange(subjects.length, i -> {
+            for (int j = i + 1; j < subjects.length; j++)
+                matrix.set(i, j, combine(get(professors, i, j), get(contents, i, j), get(areas, i, j),
+                        get(competences, i, j)));
+        });
+        this.matrix = matrix;
+    }
 
-            @Override
-            public Double[] call() {
-                return new Double[]{(double) subject2, computeSimilarity(subject1, subject2)};
-            }
+    /**
+     * Recompute the similarities of the subjects whose contents changed, or all of them if they are unknown
+     */
+    private synchronized void contentsChanged(long[] changed) {
+        if (changed == null) {
+            log.info("Recomputing similarity based on subjects");
+            computeFinalSimilarities();
+            notifyListeners(null);
+            return;
         }
 
-        int count = 1;
-        assert rows != null;
-        while (rows.hasNext()) {
-            long subject1 = rows.nextLong();
-            LongPrimitiveIterator cols = getSubjects();
-            assert cols != null;
-            cols.skip(count);
-            FastByIDMap<Double> map = new FastByIDMap<>();
-
-            ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-            Collection<Callable<Double[]>> collection = Lists.newArrayList();
-
-            while (cols.hasNext()) {
-                long subject2 = cols.next();
-                collection.add(new Wrapper(subject1, subject2));
-            }
-
-            try {
-                List<Future<Double[]>> futures = executor.invokeAll(collection);
-                for (Future<Double[]> future : futures) {
-                    Double[] result = future.get();
-                    map.put(result[0].longValue(), result[1]);
-                }
-            } catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
+        // The other criteria don't change, so their components are combined with the new contents
+        SimilarityMatrix professors = professorComponent();
+        SimilarityMatrix areas = areaComponent();
+        SimilarityMatrix competences = competenceComponent();
+        for (long subject : changed) {
+            int p = Arrays.binarySearch(subjects, subject);
+            if (p < 0)
+                continue;
+            double[] contents = contentSimilarity.itemSimilarities(subject, subjects);
+            for (int j = 0; j < subjects.length; j++) {
+                if (j != p)
+                    matrix.set(p, j, combine(get(professors, p, j), contents[j], get(areas, p, j),
+                            get(competences, p, j)));
             }
-            executor.shutdown();
-            try {
-                executor.awaitTermination(5, TimeUnit.MINUTES);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            similarityMaps.put(subject1, map);
-            count++;
         }
+        log.info("Similarity based on subjects updated for {} subjects", changed.length);
+        notifyListeners(changed);
     }
 
     /**
-     * Compute the multi-criteria similarity of two subjects combining the simple
-     * similarities of the subjects
+     * Register a listener that receives the IDs of the subjects whose similarities changed after a refresh of the
+     * documentary database, or null if any of them may have changed. It is called once the similarities are updated,
+     * so whatever it derived from them can be discarded.
      */
-    private double computeSimilarity(long subject1, long subject2) {
-        double sim1 = 0.0, sim2 = 0.0, sim3 = 0.0, sim4 = 0.0;
-        try {
-            if (wProfessors > 0.0)
-                sim1 = professorSimilarity.userSimilarity(subject1, subject2);
-            if (wContent > 0.0)
-                sim2 = contentSimilarity.itemSimilarity(subject1, subject2);
-            if (wCompetences > 0.0)
-                sim4 = competenceSimilarity.userSimilarity(subject1, subject2);
-        } catch (TasteException e) {
-            e.printStackTrace();
-            System.exit(-1);
-        }
-        if (wArea > 0.0)
-            sim3 = areaSimilarity(subject1, subject2);
+    public void addListener(Consumer<long[]> listener) {
+        listeners.add(listener);
+    }
 
+    private void notifyListeners(long[] changed) {
+        for (Consumer<long[]> listener : listeners)
+            listener.accept(changed);
+    }
+
+    /**
+     * Combine the single criterion similarities of two subjects in the multi-criteria similarity
+     */
+    private double combine(double sim1, double sim2, double sim3, double sim4) {
         double similarity = wProfessors * sim1 + wContent * sim2 + wArea * sim3 + wCompetences * sim4;
         if (similarity > 1.0)
             similarity = 1.0;
@@ -163,6 +198,94 @@ public class CourseSimilarity implements ItemSimilarity {
         return similarity;
     }
 
+    private static double get(SimilarityMatrix component, int i, int j) {
+        return component == null ? 0.0 : component.get(i, j);
+    }
+
+    private SimilarityMatrix professorComponent() {
+        if (wProfessors <= 0.0)
+            return null;
+        return component("professors", professorsSimilarityName, professors,
+                () -> computeUserComponent(professorsSimilarityName, professors));
+    }
+
+    private SimilarityMatrix contentComponent() {
+        if (wContent <= 0.0)
+            return null;
+        return component("content", contentSimilarity.fingerprint(), null, this::computeContentComponent);
+    }
+
+    private SimilarityMatrix competenceComponent() {
+        if (wCompetences <= 0.0)
+            return null;
+        return component("competences", competencesSimilarityName, competences,
+                () -> computeUserComponent(competencesSimilarityName, competences));
+    }
+
+    private SimilarityMatrix areaComponent() {
+        if (wArea <= 0.0)
+            return null;
+        return component("areas", "", areas, this::computeAreaComponent);
+    }
+
+    /**
+     * Single criterion matrix from the store, identified by the criterion, the subjects and everything it is
+     * computed from
+     */
+    private SimilarityMatrix component(String criterion, String version, DataModel model,
+                                       Supplier<SimilarityMatrix> compute) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putString(criterion, StandardCharsets.UTF_8).putString(version, StandardCharsets.UTF_8);
+        for (long subject : subjects)
+            hasher.putLong(subject);
+        try {
+            SimilarityCache.hash(hasher, model);
+        } catch (TasteException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return components.get(hasher.hash().toString(), () -> {
+            log.info("Computing {} similarity of subjects", criterion);
+            return compute.get();
+        });
+    }
+
+    private SimilarityMatrix computeUserComponent(String similarityName, DataModel model) {
+        UserSimilarity similarity = ClassInstantiator.instantiateUserSimilarity(similarityName, model);
+        SimilarityMatrix component = new DoubleSimilarityMatrix(subjects.length);
+        Parallel.forRange(subjects.length, i -> {
+            try {
+                for (int j = i + 1; j < subjects.length; j++)
+                    component.set(i, j, similarity.userSimilarity(subjects[i], subjects[j]));
+            } catch (TasteException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        });
+        return component;
+    }
+
+    private SimilarityMatrix computeContentComponent() {
+        SimilarityMatrix component = new DoubleSimilarityMatrix(subjects.length);
+        // Content similarities of a whole row in one pass
+        Parallel.forRange(subjects.length, i -> {
+            long[] others = Arrays.copyOfRange(subjects, i + 1, subjects.length);
+            double[] contents = contentSimilarity.itemSimilarities(subjects[i], others);
+            for (int j = 0; j < others.length; j++)
+                component.set(i, i + 1 + j, contents[j]);
+        });
+        return component;
+    }
+
+    private SimilarityMatrix computeAreaComponent() {
+        SimilarityMatrix component = new DoubleSimilarityMatrix(subjects.length);
+        Parallel.forRange(subjects.length, i -> {
+            for (int j = i + 1; j < subjects.length; j++)
+                component.set(i, j, areaSimilarity(subjects[i], subjects[j]));
+        });
+        return component;
+    }
+
     /**
      * Compute similarity between two subjects based on their areas in common
      * Since each one belongs to one department, expected similarity is 0 or 1
@@ -183,14 +306,18 @@ public class CourseSimilarity implements ItemSimilarity {
         return (double) interSize / (double) unionSize;
     }
 
+    /**
+     * Return the final similarity previously computed, or NaN if any of the subjects is unknown
+     */
     @Override
     public double itemSimilarity(long subject1, long subject2) {
-
-        if (subject1 < subject2)
-            return similarityMaps.get(subject1).get(subject2);
-        else if (subject2 < subject1)
-            return similarityMaps.get(subject2).get(subject1);
-        return 1.0;
+        if (subject1 == subject2)
+            return 1.0;
+        int i = Arrays.binarySearch(subjects, subject1);
+        int j = Arrays.binarySearch(subjects, subject2);
+        if (i < 0 || j < 0)
+            return Double.NaN;
+        return matrix.get(i, j);
     }
 
     @Override
@@ -204,11 +331,18 @@ public class CourseSimilarity implements ItemSimilarity {
 
     @Override
     public long[] allSimilarItemIDs(long subject) throws TasteException {
-        FastIDSet similars = new FastIDSet();
-        LongPrimitiveIterator allSubjects = professors.get().getUserIDs();
+        // With contents as the only criterion, the candidates come from its LSH index
+        if (wContent > 0.9999) {
+            FastIDSet similars = new FastIDSet();
+            for (long possiblySimilar : contentSimilarity.allSimilarItemIDs(subject, THRESHOLD)) {
+                if (Arrays.binarySearch(subjects, possiblySimilar) >= 0)
+                    similars.add(possiblySimilar);
+            }
+            return similars.toArray();
+        }
 
-        while (allSubjects.hasNext()) {
-            long possiblySimilar = allSubjects.nextLong();
+        FastIDSet similars = new FastIDSet();
+        for (long possiblySimilar : subjects) {
             double score = itemSimilarity(subject, possiblySimilar);
             if (score > THRESHOLD)
                 similars.add(possiblySimilar);
@@ -220,12 +354,21 @@ public class CourseSimilarity implements ItemSimilarity {
     public void refresh(Collection<Refreshable> arg0) {
     }
 
+    /**
+     * Release the documentary database of the content similarity, if any
+     */
+    @Override
+    public void close() throws IOException {
+        if (contentSimilarity != null)
+            contentSimilarity.close();
+    }
+
     private LongPrimitiveIterator getSubjects() {
         try {
-            if (professors.get() != null)
-                return professors.get().getUserIDs();
-            else if (competences.get() != null)
-                return competences.get().getUserIDs();
+            if (professors != null)
+                return professors.getUserIDs();
+            else if (competences != null)
+                return competences.getUserIDs();
             else if (areas != null)
                 return areas.getUserIDs();
         } catch (TasteException e) {
@@ -248,5 +391,6 @@ public class CourseSimilarity implements ItemSimilarity {
 
         professorsSimilarityName = config.getString("professorsSimilarity");
         competencesSimilarityName = config.getString("competencesSimilarity");
+        storage = SimilarityStorage.fromConfig(config);
     }
 }
\ No newline at end of file
@@ -0,0 +1,309 @@
+package com.uco.rs.recommender.similarity;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Read access to the documentary database of subject contents. The index is memory mapped, and the Lucene document
+ * of every subject is resolved once when opening it, so term vectors are fetched by subject ID without going through
+ * queries.
+ *
+ * The reader is managed by a {@link SearcherManager}, so the index can be refreshed, on demand or periodically in
+ * background, when {@code UpdateDocumentaryDB} commits new contents. Listeners are then told which subjects changed.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class DocumentaryIndex implements Closeable {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    public static final String CONTENT_FIELD = "Content";
+    public static final String ID_FIELD = "Id";
+
+    // Keys of the commit user data written by the incremental updates
+    public static final String LAST_MODIFIED_KEY = "lastModified";
+    public static final String CHANGED_KEY = "changed";
+
+    private final Directory directory;
+    private final SearcherManager manager;
+    private volatile Snapshot snapshot;
+    private volatile boolean closed;
+
+    private final List<Consumer<long[]>> listeners = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService refresher;
+
+    protected static final Logger log = LoggerFactory.getLogger(DocumentaryIndex.class);
+
+    /**
+     * Reader of one version of the index, with the subject IDs in increasing order and the document of each one
+     */
+    private static final class Snapshot {
+        private final IndexSearcher searcher;
+        private final IndexReader reader;
+        private final long generation;
+        private final long[] subjectIDs;
+        private final int[] docIDs;
+
+        private Snapshot(IndexSearcher searcher) throws IOException {
+            this.searcher = searcher;
+            this.reader = searcher.getIndexReader();
+            this.generation = ((DirectoryReader) reader).getIndexCommit().getGeneration();
+
+            Bits liveDocs = MultiFields.getLiveDocs(reader);
+            long[] ids = new long[reader.maxDoc()];
+            int[] docs = new int[reader.maxDoc()];
+            int n = 0;
+            for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                if (liveDocs != null && !liveDocs.get(doc))
+                    continue;
+                String id = reader.document(doc, Collections.singleton(ID_FIELD)).get(ID_FIELD);
+                if (id == null || !NumberUtils.isDigits(id))
+                    continue;
+                ids[n] = Long.parseLong(id);
+                docs[n] = doc;
+                n++;
+            }
+            sortByID(ids, docs, n);
+
+            // Keep the first document of a repeated subject, as a search for its ID would do
+            int unique = 0;
+            for (int i = 0; i < n; i++) {
+                if (unique > 0 && ids[unique - 1] == ids[i])
+                    continue;
+                ids[unique] = ids[i];
+                docs[unique] = docs[i];
+                unique++;
+            }
+            subjectIDs = Arrays.copyOf(ids, unique);
+            docIDs = Arrays.copyOf(docs, unique);
+        }
+
+        private int docID(long subject) {
+            int position = Arrays.binarySearch(subjectIDs, subject);
+            return position < 0 ? -1 : docIDs[position];
+        }
+    }
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+
+    /**
+     * Open the index stored in a directory
+     *
+     * @param database directory of the documentary database
+     */
+    public DocumentaryIndex(File database) throws IOException {
+        directory = new MMapDirectory(database.toPath());
+        manager = new SearcherManager(directory, null);
+        snapshot = new Snapshot(manager.acquire());
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+
+    /**
+     * Lucene document of a subject
+     *
+     * @param subject ID of the subject
+     * @return document ID, or -1 if the subject is not in the database
+     */
+    public int docID(long subject) {
+        return snapshot.docID(subject);
+    }
+
+    /**
+     * Term vector of the contents of a subject
+     *
+     * @param subject ID of the subject
+     * @return term vector, or null if the subject is not in the database or has no contents
+     * @throws AlreadyClosedException if the index has been closed
+     */
+    public Terms termVector(long subject) throws IOException {
+        while (true) {
+            Snapshot s = snapshot;
+            // The reader may be released by a concurrent refresh, then the new one is used
+            if (s.reader.tryIncRef()) {
+                try {
+                    int doc = s.docID(subject);
+                    return doc < 0 ? null : s.reader.getTermVector(doc, CONTENT_FIELD);
+                } finally {
+                    s.reader.decRef();
+                }
+            }
+            // Or by close, and then there will be no new one
+            if (closed)
+                throw new AlreadyClosedException("Documentary database is closed");
+        }
+    }
+
+    /**
+     * Number of subjects in the database. Together with {@link #subjectID(int)}, {@link #docAt(int)} and
+     * {@link #getReader()}, it must be read while synchronized on this index to get a consistent view.
+     */
+    public int numSubjects() {
+        return snapshot.subjectIDs.length;
+    }
+
+    /**
+     * ID of the i-th subject in increasing order of IDs
+     */
+    public long subjectID(int i) {
+        return snapshot.subjectIDs[i];
+    }
+
+    /**
+     * Document of the i-th subject in increasing order of IDs
+     */
+    public int docAt(int i) {
+        return snapshot.docIDs[i];
+    }
+
+    public IndexReader getReader() {
+        return snapshot.reader;
+    }
+
+    /**
+     * Register a listener that receives the IDs of the subjects changed in every refresh, or null if any of them may
+     * have changed
+     */
+    public void addListener(Consumer<long[]> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Reopen the index if there are new commits and notify the subjects that changed
+     *
+     * @return true if the index was reopened
+     */
+    public synchronized boolean maybeRefresh() throws IOException {
+        manager.maybeRefreshBlocking();
+        IndexSearcher latest = manager.acquire();
+        Snapshot previous = snapshot;
+        if (latest == previous.searcher) {
+            manager.release(latest);
+            return false;
+        }
+
+        Snapshot current = new Snapshot(latest);
+        snapshot = current;
+        manager.release(previous.searcher);
+
+        long[] changed = changedSubjects(previous, current);
+        log.info("Documentary database refreshed to generation {}: {} subjects changed", current.generation,
+                changed == null ? "all" : String.valueOf(changed.length));
+        for (Consumer<long[]> listener : listeners)
+            listener.accept(changed);
+        return true;
+    }
+
+    /**
+     * Refresh the index periodically in background
+     *
+     * @param seconds period between refreshes
+     */
+    public synchronized void startRefreshing(long seconds) {
+        if (refresher != null)
+            return;
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "documentaryDB-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(() -> {
+            try {
+                maybeRefresh();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        if (refresher != null)
+            refresher.shutdownNow();
+        manager.release(snapshot.searcher);
+        manager.close();
+        directory.close();
+    }
+
+    /**
+     * Subjects changed between two versions of the index: those listed by the update that created the new commit,
+     * plus the added and removed ones. If more than one commit happened in between, the changes of the intermediate
+     * ones are unknown and null is returned.
+     */
+    private static long[] changedSubjects(Snapshot previous, Snapshot current) throws IOException {
+        if (current.generation != previous.generation + 1)
+            return null;
+        Map<String, String> userData = ((DirectoryReader) current.reader).getIndexCommit().getUserData();
+        String listed = userData.get(CHANGED_KEY);
+        if (listed == null)
+            return null;
+
+        FastIDSet changed = new FastIDSet();
+        for (String id : listed.split(",")) {
+            if (!id.isEmpty())
+                changed.add(Long.parseLong(id));
+        }
+        for (long id : previous.subjectIDs) {
+            if (Arrays.binarySearch(current.subjectIDs, id) < 0)
+                changed.add(id);
+        }
+        for (long id : current.subjectIDs) {
+            if (Arrays.binarySearch(previous.subjectIDs, id) < 0)
+                changed.add(id);
+        }
+        long[] result = changed.toArray();
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Order the documents by subject ID, keeping the order of the documents for the same subject
+     */
+    private static void sortByID(long[] ids, int[] docs, int n) {
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(ids[a], ids[b]));
+        long[] sortedIDs = new long[n];
+        int[] sortedDocs = new int[n];
+        for (int i = 0; i < n; i++) {
+            sortedIDs[i] = ids[order[i]];
+            sortedDocs[i] = docs[order[i]];
+        }
+        System.arraycopy(sortedIDs, 0, ids, 0, n);
+        System.arraycopy(sortedDocs, 0, docs, 0, n);
+    }
+}
@@ -0,0 +1,62 @@
+package com.uco.rs.recommender.similarity;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Similarity matrix that keeps every similarity as a double
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class DoubleSimilarityMatrix extends SimilarityMatrix {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    private final double[] values;
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+    public DoubleSimilarityMatrix(int size) {
+        this(size, new double[length(size)]);
+    }
+
+    /**
+     * Matrix over an already packed array of similarities
+     */
+    DoubleSimilarityMatrix(int size, double[] values) {
+        super(size);
+        Preconditions.checkArgument(values.length == length(size), "Wrong length of a packed matrix");
+        this.values = values;
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+    @Override
+    public double get(int i, int j) {
+        return values[(int) index(i, j)];
+    }
+
+    @Override
+    public void set(int i, int j, double similarity) {
+        values[(int) index(i, j)] = similarity;
+    }
+
+    @Override
+    double getPacked(long index) {
+        return values[(int) index];
+    }
+
+    @Override
+    void setPacked(long index, double similarity) {
+        values[(int) index] = similarity;
+    }
+
+    /**
+     * Packed array of similarities. Shared array.
+     */
+    double[] values() {
+        return values;
+    }
+}
@@ -0,0 +1,68 @@
+package com.uco.rs.recommender.similarity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Similarity matrix that keeps its similarities as doubles in a memory-mapped file instead of the heap, for
+ * populations whose matrix doesn't fit in it. The packed triangle is written row after row in blocks of consecutive
+ * rows, each block a mapping of the file, so the operating system decides which pages stay in memory. The file is
+ * created in the temporary directory of the JVM ({@code java.io.tmpdir}) and removed along with the matrix.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class MappedSimilarityMatrix extends SimilarityMatrix {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    // Doubles per block, a power of two so a position splits in block and offset, and no mapping reaches 2 GB
+    private static final int BLOCK_BITS = 26;
+    private static final long OFFSET_MASK = (1L << BLOCK_BITS) - 1;
+
+    private final DoubleBuffer[] blocks;
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+    public MappedSimilarityMatrix(int size) {
+        super(size);
+        long total = pairs(size);
+        blocks = new DoubleBuffer[(int) ((total + OFFSET_MASK) >>> BLOCK_BITS)];
+        try {
+            File file = File.createTempFile("similarities", ".mat");
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+                for (int b = 0; b < blocks.length; b++) {
+                    long from = (long) b << BLOCK_BITS;
+                    long length = Math.min(OFFSET_MASK + 1, total - from);
+                    blocks[b] = channel.map(FileChannel.MapMode.READ_WRITE, from * Double.BYTES,
+                            length * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+                }
+            }
+            // Mappings remain valid once the file is unlinked, and its space is released when they are collected.
+            // Where a mapped file can't be removed, it is left until the JVM exits.
+            if (!file.delete())
+                file.deleteOnExit();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+    @Override
+    double getPacked(long index) {
+        return blocks[(int) (index >>> BLOCK_BITS)].get((int) (index & OFFSET_MASK));
+    }
+
+    @Override
+    void setPacked(long index, double similarity) {
+        blocks[(int) (index >>> BLOCK_BITS)].put((int) (index & OFFSET_MASK), similarity);
+    }
+}
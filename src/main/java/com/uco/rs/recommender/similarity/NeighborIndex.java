@@ -0,0 +1,176 @@
+package com.uco.rs.recommender.similarity;
+
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Neighborhood of students read from the neighbors that {@link StudentSimilarity} keeps sorted by similarity, so a
+ * query only visits the neighbors it returns instead of computing the similarity with every other user. It replaces:
+ * <ul>
+ * <li>NearestNUserNeighborhood: the first n neighbors, ties by lower user ID</li>
+ * <li>ThresholdUserNeighborhood: the neighbors up to the last one whose similarity reaches the threshold</li>
+ * </ul>
+ * As in Mahout, only the users of the data model are returned, and never those whose similarity is NaN. When there
+ * are no sorted neighbors for the storage of the similarities or they are lazy, and when the first neighbors kept
+ * sorted are not enough, the row of the student is scanned instead.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class NeighborIndex implements UserNeighborhood {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    private final StudentSimilarity similarity;
+    private final DataModel dataModel;
+    // Maximum size of the neighborhood, or 0 to take all the neighbors above the threshold
+    private final int n;
+    private final double threshold;
+
+    // Users of the data model
+    private volatile FastIDSet users;
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+
+    /**
+     * Neighborhood of the n most similar users
+     */
+    public NeighborIndex(int n, StudentSimilarity similarity, DataModel dataModel) throws TasteException {
+        this(n, Double.NEGATIVE_INFINITY, similarity, dataModel);
+    }
+
+    /**
+     * Neighborhood of the users whose similarity is at least the threshold
+     */
+    public NeighborIndex(double threshold, StudentSimilarity similarity, DataModel dataModel) throws TasteException {
+        this(0, threshold, similarity, dataModel);
+    }
+
+    private NeighborIndex(int n, double threshold, StudentSimilarity similarity, DataModel dataModel)
+            throws TasteException {
+        this.n = n;
+        this.threshold = threshold;
+        this.similarity = similarity;
+        this.dataModel = dataModel;
+        this.users = users(dataModel);
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+    @Override
+    public long[] getUserNeighborhood(long userID) {
+        // Indexes and similarities of the same computation, even if the similarity is refreshed meanwhile
+        StudentSimilarity.Similarities current = similarity.current();
+        int element = current.indexOf(userID);
+        if (element < 0)
+            return new long[0];
+
+        SortedNeighbors neighbors = current.neighbors;
+        if (neighbors == null)
+            return scan(current, element, similarity.row(current, element));
+        int[] row = neighbors.row(element);
+        int end = n > 0 ? row.length : neighbors.countAtLeast(element, threshold);
+        int capacity = n > 0 ? Math.min(n, current.students.length - 1) : end;
+
+        FastIDSet users = this.users;
+        long[] neighborhood = new long[capacity];
+        int size = 0;
+        int p = 0;
+        for (; p < end && size < capacity; p++) {
+            // The rest are NaN
+            if (n > 0 && Double.isNaN(neighbors.similarity(element, row[p])))
+                break;
+            long neighbor = current.studentID(row[p]);
+            if (users.contains(neighbor))
+                neighborhood[size++] = neighbor;
+        }
+        // The neighborhood may go on with the neighbors left out of the row
+        if (p == row.length && neighbors.isTruncated(element) && (n == 0 || size < capacity))
+            return scan(current, element, similarity.row(current, element));
+        return size == capacity ? neighborhood : Arrays.copyOf(neighborhood, size);
+    }
+
+    /**
+     * Same neighborhood computed from the row of similarities of the element, in one pass over it: the n best
+     * neighbors are kept in order as they are found, or all those reaching the threshold are sorted at the end
+     */
+    private long[] scan(StudentSimilarity.Similarities current, int element, double[] row) {
+        FastIDSet users = this.users;
+        int[] found = new int[n > 0 ? Math.min(n, row.length) : row.length];
+        int size = 0;
+        for (int other = 0; other < row.length; other++) {
+            // NaN is not at least any threshold
+            if (other == element || !(row[other] >= threshold)
+                    || !users.contains(current.studentID(other)))
+                continue;
+            if (n == 0) {
+                found[size++] = other;
+                continue;
+            }
+            // Others come by increasing index, so they go after the neighbors as similar as them
+            int position = size;
+            while (position > 0 && compare(row, found[position - 1], other) > 0)
+                position--;
+            if (position == found.length)
+                continue;
+            int moved = Math.min(size, found.length - 1) - position;
+            System.arraycopy(found, position, found, position + 1, moved);
+            found[position] = other;
+            size = Math.min(size + 1, found.length);
+        }
+
+        if (n == 0) {
+            Integer[] order = new Integer[size];
+            for (int p = 0; p < size; p++)
+                order[p] = found[p];
+            Arrays.sort(order, (a, b) -> compare(row, a, b));
+            for (int p = 0; p < size; p++)
+                found[p] = order[p];
+        }
+        long[] neighborhood = new long[size];
+        for (int p = 0; p < size; p++)
+            neighborhood[p] = current.studentID(found[p]);
+        return neighborhood;
+    }
+
+    /**
+     * Neighbor order of two neighbors of an element whose similarities are not NaN
+     */
+    private static int compare(double[] row, int neighbor1, int neighbor2) {
+        double similarity1 = row[neighbor1];
+        double similarity2 = row[neighbor2];
+        if (similarity1 != similarity2)
+            return similarity1 > similarity2 ? -1 : 1;
+        return Integer.compare(neighbor1, neighbor2);
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        alreadyRefreshed = RefreshHelper.buildRefreshed(alreadyRefreshed);
+        RefreshHelper.maybeRefresh(alreadyRefreshed, dataModel);
+        RefreshHelper.maybeRefresh(alreadyRefreshed, similarity);
+        try {
+            users = users(dataModel);
+        } catch (TasteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static FastIDSet users(DataModel dataModel) throws TasteException {
+        FastIDSet users = new FastIDSet(dataModel.getNumUsers());
+        for (LongPrimitiveIterator it = dataModel.getUserIDs(); it.hasNext(); )
+            users.add(it.nextLong());
+        return users;
+    }
+}
@@ -0,0 +1,179 @@
+package com.uco.rs.recommender.similarity;
+
+import com.uco.rs.util.Parallel;
+
+import java.util.Arrays;
+
+/**
+ * Similarity matrix that replaces the rows of some elements of another matrix, which is not modified. The
+ * similarities of a few elements are updated this way while the previous matrix may still be read, at a cost linear
+ * in the number of elements for each of them. When the replaced rows grow too many they are copied along with the
+ * rest into a new matrix.
+ *
+ * @author Aurora Esteban Toscano
+ */
+final class OverlaySimilarityMatrix extends SimilarityMatrix {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    // Replaced rows, as a fraction of the elements, from which the matrix is copied instead
+    private static final int MAX_ROWS_FRACTION = 16;
+
+    private final SimilarityMatrix base;
+    // Position of the replaced row of each element, or -1 if it is read from the base
+    private final int[] slots;
+    // Similarities of the replaced elements with every element by index, as the base would store them
+    private final double[][] rows;
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+    private OverlaySimilarityMatrix(SimilarityMatrix base, int[] slots, double[][] rows) {
+        super(base.size());
+        this.base = base;
+        this.slots = slots;
+        this.rows = rows;
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+
+    /**
+     * Matrix with the rows of some elements replaced, leaving the given matrix as it is
+     *
+     * @param matrix      current similarities
+     * @param changed     elements whose similarities changed
+     * @param changedRows new similarities of each changed element with every element by index
+     * @param storage     storage of the matrix, in case it is copied
+     * @return matrix with the new similarities
+     */
+    static SimilarityMatrix replaceRows(SimilarityMatrix matrix, int[] changed, double[][] changedRows,
+                                        SimilarityStorage storage) {
+        SimilarityMatrix base = matrix;
+        int[] slots;
+        if (matrix instanceof OverlaySimilarityMatrix) {
+            base = ((OverlaySimilarityMatrix) matrix).base;
+            slots = ((OverlaySimilarityMatrix) matrix).slots.clone();
+        } else {
+            slots = new int[matrix.size()];
+            Arrays.fill(slots, -1);
+        }
+
+        // Rows replaced before keep their slot, and the changed elements are added after them
+        int count = 0;
+        for (int slot : slots)
+            count = Math.max(count, slot + 1);
+        for (int element : changed) {
+            if (slots[element] < 0)
+                slots[element] = count++;
+        }
+
+        boolean[] isChanged = new boolean[matrix.size()];
+        for (int element : changed)
+            isChanged[element] = true;
+        double[][] rows = new double[count][];
+        for (int k = 0; k < changed.length; k++) {
+            double[] row = changedRows[k].clone();
+            for (int j = 0; j < row.length; j++)
+                row[j] = base.stored(row[j]);
+            rows[slots[changed[k]]] = row;
+        }
+        if (matrix instanceof OverlaySimilarityMatrix) {
+            // Rows of the elements that didn't change now, with their similarities with the changed ones replaced
+            OverlaySimilarityMatrix overlay = (OverlaySimilarityMatrix) matrix;
+            for (int element = 0; element < slots.length; element++) {
+                int slot = overlay.slots[element];
+                if (slot < 0 || isChanged[element])
+                    continue;
+                double[] row = overlay.rows[slot].clone();
+                for (int other : changed)
+                    row[other] = rows[slots[other]][element];
+                rows[slot] = row;
+            }
+        }
+
+        OverlaySimilarityMatrix overlay = new OverlaySimilarityMatrix(base, slots, rows);
+        if (count <= matrix.size() / MAX_ROWS_FRACTION)
+            return overlay;
+        return overlay.copy(storage);
+    }
+
+    /**
+     * Copy of every similarity into a new matrix with the given storage
+     */
+    private SimilarityMatrix copy(SimilarityStorage storage) {
+        SimilarityMatrix copy = base.emptyLike(storage);
+        Parallel.forRange(size(), i -> {
+            int[] candidates = candidates(i);
+            if (candidates == null) {
+                for (int j = i + 1; j < size(); j++)
+                    copy.set(i, j, get(i, j));
+                return;
+            }
+            for (int j : candidates) {
+                if (j > i)
+                    copy.set(i, j, get(i, j));
+            }
+        });
+        return copy;
+    }
+
+    @Override
+    public double get(int i, int j) {
+        int slot = slots[i];
+        if (slot >= 0)
+            return rows[slot][j];
+        slot = slots[j];
+        if (slot >= 0)
+            return rows[slot][i];
+        return base.get(i, j);
+    }
+
+    /**
+     * The similarities of an overlay are only replaced by a new overlay
+     */
+    @Override
+    public void set(int i, int j, double similarity) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Rows are replaced whole, so the similarities are not read by position in the packed triangle
+     */
+    @Override
+    double getPacked(long index) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    void setPacked(long index, double similarity) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    boolean stores(int i, int j) {
+        return base.stores(i, j);
+    }
+
+    @Override
+    int[] candidates(int element) {
+        return base.candidates(element);
+    }
+
+    @Override
+    int numCandidates(int element) {
+        return base.numCandidates(element);
+    }
+
+    @Override
+    SimilarityMatrix emptyLike(SimilarityStorage storage) {
+        return base.emptyLike(storage);
+    }
+
+    @Override
+    double stored(double similarity) {
+        return base.stored(similarity);
+    }
+}
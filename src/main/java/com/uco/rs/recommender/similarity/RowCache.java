@@ -0,0 +1,99 @@
+package com.uco.rs.recommender.similarity;
+
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded cache of rows of similarities, by the index of their element. It is split in stripes, each one with its own
+ * lock and least recently used order, so threads asking for different rows rarely wait for each other. Rows are held
+ * through soft references, so the garbage collector can also discard them when the heap runs short.
+ *
+ * @author Aurora Esteban Toscano
+ */
+final class RowCache {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    private static final int STRIPES = 16;
+
+    private final Map<Integer, SoftReference<double[]>>[] stripes;
+    // Number of times the cache has been cleared, so rows computed before are not stored after
+    private final AtomicInteger generation = new AtomicInteger();
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+    /**
+     * @param maxRows maximum number of rows, rounded up to a multiple of the number of stripes
+     */
+    @SuppressWarnings("unchecked")
+    RowCache(int maxRows) {
+        int rowsPerStripe = Math.max(1, (maxRows + STRIPES - 1) / STRIPES);
+        stripes = new Map[STRIPES];
+        for (int s = 0; s < STRIPES; s++) {
+            stripes[s] = new LinkedHashMap<Integer, SoftReference<double[]>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, SoftReference<double[]>> eldest) {
+                    return size() > rowsPerStripe;
+                }
+            };
+        }
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+
+    /**
+     * Row of an element, or null if it is not in the cache
+     */
+    double[] get(int element) {
+        Map<Integer, SoftReference<double[]>> stripe = stripe(element);
+        synchronized (stripe) {
+            SoftReference<double[]> reference = stripe.get(element);
+            if (reference == null)
+                return null;
+            double[] row = reference.get();
+            // Collected under memory pressure
+            if (row == null)
+                stripe.remove(element);
+            return row;
+        }
+    }
+
+    /**
+     * Current generation of the cache, to be taken before computing a row
+     */
+    int generation() {
+        return generation.get();
+    }
+
+    /**
+     * Store a row, unless the cache has been cleared since its computation started
+     *
+     * @param generation generation of the cache when the computation started
+     */
+    void put(int element, double[] row, int generation) {
+        Map<Integer, SoftReference<double[]>> stripe = stripe(element);
+        synchronized (stripe) {
+            if (generation == this.generation.get())
+                stripe.put(element, new SoftReference<>(row));
+        }
+    }
+
+    void clear() {
+        generation.incrementAndGet();
+        for (Map<Integer, SoftReference<double[]>> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    private Map<Integer, SoftReference<double[]>> stripe(int element) {
+        return stripes[Math.floorMod(element, STRIPES)];
+    }
+}
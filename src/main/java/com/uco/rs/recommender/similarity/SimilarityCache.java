@@ -0,0 +1,248 @@
+package com.uco.rs.recommender.similarity;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.uco.rs.recommender.similarity.fast.PreferenceMatrix;
+import com.uco.rs.util.PathLoader;
+import org.apache.commons.configuration2.Configuration;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * On-disk cache of finished similarity matrices, so a restart with the same data and configuration doesn't compute
+ * them again. Each matrix is stored in a file named after the similarity and a fingerprint of everything it depends
+ * on: the configuration of the similarity and the content of its data models (sizes plus a hash of every preference).
+ * The keys that don't change the values, such as the storage, are left out of the configuration.
+ * Files are written and read through memory mappings.
+ *
+ * The cache is enabled by giving, in the configuration of the similarity, the directory of the cache relative to the
+ * configuration folder:
+ * <pre>
+ * &lt;cacheDir&gt;similarityCache&lt;/cacheDir&gt;
+ * </pre>
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class SimilarityCache {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    public static final String CONFIG_KEY = "cacheDir";
+
+    private static final int MAGIC = 0x53494d43;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 3 * Integer.BYTES;
+    // Doubles per mapping, so no mapping reaches the 2 GB limit
+    private static final int CHUNK = 1 << 26;
+    // Keys of the configuration that change how the similarities are kept or computed, not their values. The storage
+    // may be chosen by the planner for the heap of each run, and matrices are always stored as doubles.
+    private static final Set<String> IGNORED_KEYS = new HashSet<>(Arrays.asList(CONFIG_KEY,
+            SimilarityStorage.CONFIG_KEY, "rowCacheSize", "denseThreshold", "lazy", "refreshSeconds"));
+
+    private final File directory;
+
+    protected static final Logger log = LoggerFactory.getLogger(SimilarityCache.class);
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+    public SimilarityCache(File directory) {
+        this.directory = directory;
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+
+    /**
+     * Cache set in the configuration of a similarity
+     *
+     * @return the cache, or null if it is not enabled
+     */
+    public static SimilarityCache fromConfig(Configuration config) {
+        if (!config.containsKey(CONFIG_KEY))
+            return null;
+        return new SimilarityCache(PathLoader.getConfigPath(config.getString(CONFIG_KEY)));
+    }
+
+    /**
+     * Fingerprint of the inputs of a similarity
+     *
+     * @param config configuration of the similarity
+     * @param models data models it is computed from, possibly null
+     */
+    public static String fingerprint(Configuration config, DataModel... models) throws TasteException {
+        return fingerprint(config, "", models);
+    }
+
+    /**
+     * Fingerprint of the inputs of a similarity
+     *
+     * @param config configuration of the similarity
+     * @param extra  fingerprint of any other input
+     * @param models data models it is computed from, possibly null
+     */
+    public static String fingerprint(Configuration config, String extra, DataModel... models) throws TasteException {
+        Hasher hasher = Hashing.sha1().newHasher();
+
+        List<String> keys = new ArrayList<>();
+        for (Iterator<String> it = config.getKeys(); it.hasNext(); )
+            keys.add(it.next());
+        Collections.sort(keys);
+        for (String key : keys) {
+            if (!IGNORED_KEYS.contains(key))
+                hasher.putString(key + '=' + config.getString(key), StandardCharsets.UTF_8);
+        }
+        hasher.putString(extra, StandardCharsets.UTF_8);
+
+        for (DataModel model : models)
+            hash(hasher, model);
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Feed the sizes and every preference of a data model, possibly null, to a hash function
+     */
+    static void hash(Hasher hasher, DataModel model) throws TasteException {
+        if (model == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        PreferenceMatrix matrix = PreferenceMatrix.of(model);
+        hasher.putInt(matrix.numUsers()).putInt(matrix.numItems()).putInt(matrix.numPreferences());
+        int[] columns = matrix.columns();
+        float[] values = matrix.values();
+        for (int row = 0; row < matrix.numUsers(); row++) {
+            hasher.putLong(matrix.userID(row));
+            for (int p = matrix.rowStart(row); p < matrix.rowEnd(row); p++)
+                hasher.putLong(matrix.itemID(columns[p])).putFloat(values[p]);
+        }
+    }
+
+    /**
+     * Matrix previously stored with the same fingerprint and elements
+     *
+     * @param name        name of the similarity
+     * @param fingerprint fingerprint of its inputs
+     * @param ids         IDs of the elements of the matrix, in increasing order
+     * @param storage     storage of the loaded matrix
+     * @return the matrix, or null if it is not in the cache
+     */
+    public SimilarityMatrix load(String name, String fingerprint, long[] ids, SimilarityStorage storage) {
+        File file = file(name, fingerprint);
+        if (!file.isFile())
+            return null;
+
+        long start = System.currentTimeMillis();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            long idBytes = (long) ids.length * Long.BYTES;
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES + idBytes);
+            header.order(ByteOrder.nativeOrder());
+            if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != ids.length) {
+                log.warn("Ignoring cached similarities in {}: wrong header", file);
+                return null;
+            }
+            long[] stored = new long[ids.length];
+            header.asLongBuffer().get(stored);
+            if (!Arrays.equals(stored, ids)) {
+                log.warn("Ignoring cached similarities in {}: different elements", file);
+                return null;
+            }
+
+            SimilarityMatrix matrix = SimilarityMatrix.create(ids.length, storage);
+            long total = SimilarityMatrix.pairs(ids.length);
+            long position = HEADER_BYTES + idBytes;
+            for (long from = 0; from < total; from += CHUNK) {
+                int length = (int) Math.min(CHUNK, total - from);
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        (long) length * Double.BYTES);
+                DoubleBuffer doubles = chunk.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+                if (matrix instanceof DoubleSimilarityMatrix) {
+                    doubles.get(((DoubleSimilarityMatrix) matrix).values(), (int) from, length);
+                } else {
+                    for (long k = from; k < from + length; k++)
+                        matrix.setPacked(k, doubles.get());
+                }
+                position += (long) length * Double.BYTES;
+            }
+            log.info("Similarities of {} loaded from {} in {} ms", name, file, System.currentTimeMillis() - start);
+            return matrix;
+        } catch (IOException e) {
+            log.warn("Ignoring cached similarities in {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Store a finished matrix. Failures are logged and otherwise ignored, since the cache is only an optimization.
+     *
+     * @param name        name of the similarity
+     * @param fingerprint fingerprint of its inputs
+     * @param ids         IDs of the elements of the matrix, in increasing order
+     * @param matrix      similarities
+     */
+    public void store(String name, String fingerprint, long[] ids, SimilarityMatrix matrix) {
+        File file = file(name, fingerprint);
+        try {
+            Files.createDirectories(directory.toPath());
+            // Written aside and moved, so a reader never sees a half written file
+            File tmp = File.createTempFile(name, ".tmp", directory);
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw"); FileChannel channel = raf.getChannel()) {
+                long idBytes = (long) ids.length * Long.BYTES;
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + idBytes);
+                header.order(ByteOrder.nativeOrder());
+                header.putInt(MAGIC).putInt(VERSION).putInt(ids.length);
+                header.asLongBuffer().put(ids);
+
+                // Always stored as doubles, whatever the storage of the matrix
+                long total = SimilarityMatrix.pairs(ids.length);
+                long position = HEADER_BYTES + idBytes;
+                for (long from = 0; from < total; from += CHUNK) {
+                    int length = (int) Math.min(CHUNK, total - from);
+                    MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_WRITE, position,
+                            (long) length * Double.BYTES);
+                    DoubleBuffer doubles = chunk.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+                    if (matrix instanceof DoubleSimilarityMatrix) {
+                        doubles.put(((DoubleSimilarityMatrix) matrix).values(), (int) from, length);
+                    } else {
+                        for (long k = from; k < from + length; k++)
+                            doubles.put(matrix.getPacked(k));
+                    }
+                    chunk.force();
+                    position += (long) length * Double.BYTES;
+                }
+                header.force();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            log.info("Similarities of {} stored in {}", name, file);
+        } catch (IOException e) {
+            log.warn("Similarities of {} could not be cached: {}", name, e.getMessage());
+        }
+    }
+
+    private File file(String name, String fingerprint) {
+        return new File(directory, name + '-' + fingerprint + ".sim");
+    }
+}
@@ -0,0 +1,74 @@
+package com.uco.rs.recommender.similarity;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+
+/**
+ * In-memory store of single criterion similarity matrices that don't depend on the ratings, so every execution of a
+ * recommender in the same process can reuse them. Matrices are identified by a key that fingerprints everything they
+ * are computed from, and the least recently used ones are discarded beyond a maximum number of entries.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class SimilarityComponents {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    // Matrices being computed are also here, so other instances wait for them instead of computing them again
+    private final Map<String, FutureTask<SimilarityMatrix>> matrices;
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+    public SimilarityComponents(int maxEntries) {
+        matrices = new LinkedHashMap<String, FutureTask<SimilarityMatrix>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FutureTask<SimilarityMatrix>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+
+    /**
+     * Matrix stored with the given key, computed and stored if there is none. Different matrices are computed
+     * concurrently.
+     *
+     * @param key     fingerprint of the inputs of the matrix
+     * @param compute computation of the matrix
+     */
+    public SimilarityMatrix get(String key, Supplier<SimilarityMatrix> compute) {
+        FutureTask<SimilarityMatrix> task;
+        boolean computes = false;
+        synchronized (this) {
+            task = matrices.get(key);
+            if (task == null) {
+                task = new FutureTask<>(compute::get);
+                matrices.put(key, task);
+                computes = true;
+            }
+        }
+        if (computes)
+            task.run();
+
+        SimilarityMatrix matrix = null;
+        try {
+            matrix = task.get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return matrix;
+    }
+
+    public synchronized int size() {
+        return matrices.size();
+    }
+}
@@ -0,0 +1,148 @@
+package com.uco.rs.recommender.similarity;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+
+import java.util.Arrays;
+
+/**
+ * Symmetric matrix of similarities between n elements, identified by their index in [0, n). Only the upper
+ * triangle without the diagonal is stored, packed by rows. Subclasses define how the packed similarities are stored.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public abstract class SimilarityMatrix {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    private final int size;
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+    SimilarityMatrix(int size) {
+        Preconditions.checkArgument(size >= 0, "Negative size of a matrix: " + size);
+        this.size = size;
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+
+    /**
+     * Empty matrix with the given storage
+     */
+    public static SimilarityMatrix create(int size, SimilarityStorage storage) {
+        switch (storage) {
+            case QUANTIZED:
+                return new QuantizedSimilarityMatrix(size);
+            case MAPPED:
+                return new MappedSimilarityMatrix(size);
+            default:
+                return new DoubleSimilarityMatrix(size);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Similarity between two different elements
+     */
+    public double get(int i, int j) {
+        return getPacked(index(i, j));
+    }
+
+    /**
+     * Store the similarity between two different elements
+     */
+    public void set(int i, int j, double similarity) {
+        setPacked(index(i, j), similarity);
+    }
+
+    /**
+     * Similarity at a position of the packed triangle
+     */
+    abstract double getPacked(long index);
+
+    abstract void setPacked(long index, double similarity);
+
+    /**
+     * Whether the similarity between two different elements is kept, or it is NaN because they are not compared
+     */
+    boolean stores(int i, int j) {
+        return true;
+    }
+
+    /**
+     * Elements whose similarities with the given one are kept, in increasing order and maybe with the element
+     * itself, or null if they are all the elements
+     */
+    int[] candidates(int element) {
+        return null;
+    }
+
+    /**
+     * Number of other elements whose similarities with the given one are kept
+     */
+    int numCandidates(int element) {
+        return size - 1;
+    }
+
+    /**
+     * Empty matrix that keeps the same pairs, with the given storage
+     */
+    SimilarityMatrix emptyLike(SimilarityStorage storage) {
+        return create(size, storage);
+    }
+
+    /**
+     * Similarity as it is read back once stored
+     */
+    double stored(double similarity) {
+        return similarity;
+    }
+
+    /**
+     * IDs of the elements of a matrix, in increasing order
+     */
+    public static long[] sortedIDs(LongPrimitiveIterator it) {
+        FastIDSet ids = new FastIDSet();
+        while (it != null && it.hasNext())
+            ids.add(it.nextLong());
+        long[] array = ids.toArray();
+        Arrays.sort(array);
+        return array;
+    }
+
+    /**
+     * Number of pairs of different elements of a matrix of the given size
+     */
+    static long pairs(int size) {
+        return (long) size * (size - 1) / 2;
+    }
+
+    /**
+     * Length of the packed array of a matrix of the given size, for the storages backed by a Java array
+     */
+    static int length(int size) {
+        long length = pairs(size);
+        Preconditions.checkArgument(length < Integer.MAX_VALUE, "Too many elements for a packed matrix: " + size);
+        return (int) length;
+    }
+
+    /**
+     * Position in the packed array of the pair (i, j), with i != j
+     */
+    final long index(int i, int j) {
+        if (i > j) {
+            int tmp = i;
+            i = j;
+            j = tmp;
+        }
+        return (long) i * (2L * size - i - 1) / 2 + (j - i - 1);
+    }
+}
@@ -0,0 +1,52 @@
+package com.uco.rs.recommender.similarity;
+
+import org.apache.commons.configuration2.Configuration;
+
+import java.util.Locale;
+
+/**
+ * How the similarities of a matrix are stored, chosen in the configuration of a similarity:
+ * <pre>
+ * &lt;storage&gt;quantized&lt;/storage&gt;
+ * </pre>
+ * The recommenders that plan their storage take {@link #AUTO} as the default, see {@link StoragePlanner}.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public enum SimilarityStorage {
+
+    /**
+     * One double per similarity
+     */
+    DOUBLE,
+    /**
+     * One 16-bit fixed point number per similarity
+     */
+    QUANTIZED,
+    /**
+     * One double per similarity in a memory-mapped file, out of the heap
+     */
+    MAPPED;
+
+    public static final String CONFIG_KEY = "storage";
+    // Value of the configuration that leaves the storage to the planner
+    public static final String AUTO = "auto";
+
+    /**
+     * Whether the similarities are kept in the heap
+     */
+    public boolean inHeap() {
+        return this != MAPPED;
+    }
+
+    /**
+     * Storage set in the configuration of a similarity, doubles by default or if it was left to a planner that
+     * didn't run
+     */
+    public static SimilarityStorage fromConfig(Configuration config) {
+        String storage = config.getString(CONFIG_KEY, DOUBLE.name());
+        if (storage.equalsIgnoreCase(AUTO))
+            return DOUBLE;
+        return valueOf(storage.toUpperCase(Locale.ROOT));
+    }
+}
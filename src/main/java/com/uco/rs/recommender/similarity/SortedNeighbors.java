@@ -0,0 +1,206 @@
+package com.uco.rs.recommender.similarity;
+
+import com.uco.rs.util.Parallel;
+
+import java.util.Arrays;
+
+/**
+ * Every element of a similarity matrix with the rest of the elements sorted as neighbors: by decreasing similarity,
+ * ties by increasing index, and the elements whose similarity is NaN at the end. Neighborhoods are then prefixes of
+ * the rows, found without computing or comparing all the similarities. Only the elements whose similarity the matrix
+ * keeps are sorted, and rows may be limited to the first neighbors, for neighborhoods of a known size.
+ *
+ * @author Aurora Esteban Toscano
+ */
+final class SortedNeighbors {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    private final SimilarityMatrix matrix;
+    // Maximum length of the rows
+    private final int limit;
+    // Row i holds the indices of the other elements in neighbor order, the first limit of them
+    private final int[][] rows;
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+    SortedNeighbors(SimilarityMatrix matrix) {
+        this(matrix, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Only the first neighbors of every element, up to the given limit
+     */
+    SortedNeighbors(SimilarityMatrix matrix, int limit) {
+        this(matrix, limit, new int[matrix.size()][]);
+        Parallel.forRange(matrix.size(), this::sortRow);
+    }
+
+    private SortedNeighbors(SimilarityMatrix matrix, int limit, int[][] rows) {
+        this.matrix = matrix;
+        this.limit = limit;
+        this.rows = rows;
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+
+    /**
+     * Neighbors of an element, in neighbor order. Shared array that must not be modified.
+     */
+    int[] row(int element) {
+        return rows[element];
+    }
+
+    /**
+     * Whether the row of an element leaves out some of the other elements whose similarity is kept
+     */
+    boolean isTruncated(int element) {
+        return rows[element].length < matrix.numCandidates(element);
+    }
+
+    /**
+     * Similarity of an element with one of its neighbors
+     */
+    double similarity(int element, int neighbor) {
+        return matrix.get(element, neighbor);
+    }
+
+    /**
+     * Number of neighbors in the row of an element whose similarity is at least the given one, found by binary search
+     */
+    int countAtLeast(int element, double threshold) {
+        int[] row = rows[element];
+        int low = 0, high = row.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            // NaN is not at least any threshold
+            if (matrix.get(element, row[mid]) >= threshold)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Neighbors in order for a new matrix that only differs from this one in the similarities of some elements.
+     * Their own rows are sorted again, and in the rest they are taken out and inserted back in place, which is linear
+     * in the number of elements for each of them. A limited row is sorted again too if the elements it left out may
+     * now enter it. Neither this instance nor its matrix are modified.
+     *
+     * @param updatedMatrix matrix with the new similarities
+     * @param changed       elements whose similarities changed
+     * @return neighbors of the new matrix
+     */
+    SortedNeighbors update(SimilarityMatrix updatedMatrix, int[] changed) {
+        boolean[] isChanged = new boolean[rows.length];
+        for (int element : changed)
+            isChanged[element] = true;
+
+        SortedNeighbors updated = new SortedNeighbors(updatedMatrix, limit, new int[rows.length][]);
+        Parallel.forRange(rows.length, element -> {
+            if (isChanged[element]) {
+                updated.sortRow(element);
+                return;
+            }
+            int[] row = new int[rows[element].length + changed.length];
+            int size = 0;
+            for (int neighbor : rows[element]) {
+                if (!isChanged[neighbor])
+                    row[size++] = neighbor;
+            }
+            // Position of the last neighbor that stays: the elements left out of the row go after it
+            int last = size - 1;
+            for (int neighbor : changed) {
+                // Those that are not compared with the element are not among its neighbors
+                if (!updatedMatrix.stores(element, neighbor))
+                    continue;
+                int position = updated.insertionPoint(element, row, size, neighbor);
+                System.arraycopy(row, position, row, position + 1, size - position);
+                row[position] = neighbor;
+                size++;
+                if (position <= last)
+                    last++;
+            }
+            if (isTruncated(element) && last + 1 < limit)
+                updated.sortRow(element);
+            else
+                updated.rows[element] = Arrays.copyOf(row, Math.min(limit, size));
+        });
+        return updated;
+    }
+
+    private void sortRow(int element) {
+        int[] candidates = matrix.candidates(element);
+        int[] row = new int[matrix.numCandidates(element)];
+        if (candidates == null) {
+            for (int i = 0, p = 0; i < matrix.size(); i++) {
+                if (i != element)
+                    row[p++] = i;
+            }
+        } else {
+            int p = 0;
+            for (int i : candidates) {
+                if (i != element)
+                    row[p++] = i;
+            }
+        }
+        // Stable sort, so ties keep the increasing order of indices
+        int[] buffer = new int[row.length];
+        mergeSort(element, row, buffer, 0, row.length);
+        rows[element] = row.length > limit ? Arrays.copyOf(row, limit) : row;
+    }
+
+    private void mergeSort(int element, int[] row, int[] buffer, int from, int to) {
+        if (to - from < 2)
+            return;
+        int mid = (from + to) >>> 1;
+        mergeSort(element, row, buffer, from, mid);
+        mergeSort(element, row, buffer, mid, to);
+        if (compare(element, row[mid - 1], row[mid]) <= 0)
+            return;
+
+        System.arraycopy(row, from, buffer, from, to - from);
+        int i = from, j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < mid && compare(element, buffer[i], buffer[j]) <= 0))
+                row[k] = buffer[i++];
+            else
+                row[k] = buffer[j++];
+        }
+    }
+
+    /**
+     * Position of a neighbor in the first size positions of a sorted row
+     */
+    private int insertionPoint(int element, int[] row, int size, int neighbor) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(element, row[mid], neighbor) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Neighbor order of two neighbors of an element
+     */
+    private int compare(int element, int neighbor1, int neighbor2) {
+        double similarity1 = matrix.get(element, neighbor1);
+        double similarity2 = matrix.get(element, neighbor2);
+        boolean nan1 = Double.isNaN(similarity1);
+        boolean nan2 = Double.isNaN(similarity2);
+        if (nan1 != nan2)
+            return nan1 ? 1 : -1;
+        if (!nan1 && similarity1 != similarity2)
+            return similarity1 > similarity2 ? -1 : 1;
+        return Integer.compare(neighbor1, neighbor2);
+    }
+}
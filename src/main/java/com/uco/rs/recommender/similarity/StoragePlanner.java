@@ -0,0 +1,198 @@
+package com.uco.rs.recommender.similarity;
+
+import org.apache.commons.configuration2.BaseConfiguration;
+import org.apache.commons.configuration2.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Choice of the storage of a similarity matrix from the number of elements, the size of the neighborhoods and the
+ * memory available, for the recommenders whose configuration leaves it to them:
+ * <pre>
+ * &lt;storage&gt;auto&lt;/storage&gt;
+ * </pre>
+ * The memory and the work of every storage are estimated and the first one whose memory fits is taken, in order:
+ * doubles, which are exact and fastest, quantized similarities, a quarter of the memory of the matrix with only the
+ * neighbors of fixed size neighborhoods kept sorted, and a mapped file, with nothing in the heap but the slowest
+ * neighborhoods. If none fits, the mapped file is taken anyway.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class StoragePlanner {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    // Fraction of the free heap that the similarities may take, the rest is left to the models and the recommender
+    private static final double HEAP_FRACTION = 0.5;
+    private static final long MB = 1L << 20;
+
+    private final String name;
+    private final int size;
+    // Neighbors taken from the sorted neighbors by every query, or 0 if every neighbor may be read
+    private final int neighborhoodSize;
+    // Whether the neighbors of every element are kept sorted along with a matrix in the heap
+    private final boolean sortedNeighbors;
+    // Heap taken per pair by other structures, whatever the storage
+    private final double fixedBytesPerPair;
+    // Heap taken by structures only used along with a matrix of doubles
+    private final long doubleOnlyBytes;
+
+    protected static final Logger log = LoggerFactory.getLogger(StoragePlanner.class);
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+    /**
+     * @param name              name of the similarity, for the log
+     * @param size              number of elements of the matrix
+     * @param neighborhoodSize  neighbors returned by every query, or 0 for threshold neighborhoods
+     * @param sortedNeighbors   whether sorted neighbors are kept along with a matrix in the heap
+     * @param fixedBytesPerPair heap taken per pair by other structures, whatever the storage
+     */
+    public StoragePlanner(String name, int size, int neighborhoodSize, boolean sortedNeighbors,
+                          double fixedBytesPerPair) {
+        this(name, size, neighborhoodSize, sortedNeighbors, fixedBytesPerPair, 0L);
+    }
+
+    /**
+     * @param doubleOnlyBytes heap taken by structures that are only used when the matrix is kept as doubles, such as
+     *                        the dense backends of the single criterion similarities
+     */
+    public StoragePlanner(String name, int size, int neighborhoodSize, boolean sortedNeighbors,
+                          double fixedBytesPerPair, long doubleOnlyBytes) {
+        this.name = name;
+        this.size = size;
+        this.neighborhoodSize = neighborhoodSize;
+        this.sortedNeighbors = sortedNeighbors;
+        this.fixedBytesPerPair = fixedBytesPerPair;
+        this.doubleOnlyBytes = doubleOnlyBytes;
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+
+    /**
+     * Whether the configuration of a similarity leaves its storage to the planner, which is the default
+     */
+    public static boolean isAuto(Configuration config) {
+        return SimilarityStorage.AUTO.equalsIgnoreCase(config.getString(SimilarityStorage.CONFIG_KEY,
+                SimilarityStorage.AUTO));
+    }
+
+    /**
+     * Copy of the configuration of a similarity with the given storage
+     */
+    public static Configuration withStorage(Configuration config, SimilarityStorage storage) {
+        BaseConfiguration planned = new BaseConfiguration();
+        planned.copy(config);
+        planned.setProperty(SimilarityStorage.CONFIG_KEY, storage.name().toLowerCase(Locale.ROOT));
+        return planned;
+    }
+
+    /**
+     * Storage for the heap that is free now and the space of the temporary directory, where mapped files are
+     */
+    public SimilarityStorage plan() {
+        Runtime runtime = Runtime.getRuntime();
+        long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        long freeDisk = new File(System.getProperty("java.io.tmpdir")).getUsableSpace();
+        return plan((long) (freeHeap * HEAP_FRACTION), freeDisk);
+    }
+
+    /**
+     * Storage for the given memory, logging the estimations of every storage and the decision
+     *
+     * @param heapBudget bytes of heap that the similarities may take
+     * @param diskBudget bytes that a mapped file may take
+     */
+    public SimilarityStorage plan(long heapBudget, long diskBudget) {
+        SimilarityStorage chosen = null;
+        for (SimilarityStorage storage : SimilarityStorage.values()) {
+            boolean fits = heapBytes(storage) <= heapBudget && diskBytes(storage) <= diskBudget;
+            log.info("Storage {} for {} similarities: {} MB of heap, {} MB on disk, {} comparisons to build, {} "
+                            + "similarities read per neighborhood{}", storage, name, heapBytes(storage) / MB,
+                    diskBytes(storage) / MB, buildCost(storage), queryCost(storage), fits ? "" : ", doesn't fit");
+            if (fits && chosen == null)
+                chosen = storage;
+        }
+        if (chosen == null) {
+            chosen = SimilarityStorage.MAPPED;
+            log.warn("No storage for {} similarities fits in {} MB of heap and {} MB of disk, taking {}", name,
+                    heapBudget / MB, diskBudget / MB, chosen);
+        } else {
+            log.info("Storage of {} similarities between {} elements: {} (budget of {} MB of heap)", name, size,
+                    chosen, heapBudget / MB);
+        }
+        return chosen;
+    }
+
+    /**
+     * Estimated heap taken by the similarities with a storage: the matrix, the sorted neighbors, the fixed
+     * structures and, with doubles, the structures that come with them
+     */
+    long heapBytes(SimilarityStorage storage) {
+        long pairs = SimilarityMatrix.pairs(size);
+        long bytes = (long) (fixedBytesPerPair * pairs);
+        switch (storage) {
+            case DOUBLE:
+                bytes += pairs * Double.BYTES + doubleOnlyBytes;
+                break;
+            case QUANTIZED:
+                bytes += pairs * Short.BYTES;
+                break;
+            default:
+                break;
+        }
+        // Every element has the others it keeps sorted in an array with its own header
+        long kept = keptNeighbors(storage);
+        if (kept > 0)
+            bytes += (long) size * (kept * Integer.BYTES + 16);
+        return bytes;
+    }
+
+    /**
+     * Neighbors kept sorted for every element with a storage: all the others with doubles, those returned by the
+     * neighborhoods if their size is fixed with quantized similarities, and none out of the heap
+     */
+    long keptNeighbors(SimilarityStorage storage) {
+        int others = Math.max(size - 1, 0);
+        if (!sortedNeighbors || !storage.inHeap())
+            return 0;
+        if (storage == SimilarityStorage.QUANTIZED)
+            return Math.min(neighborhoodSize, others);
+        return others;
+    }
+
+    /**
+     * Estimated bytes of the file of a storage
+     */
+    long diskBytes(SimilarityStorage storage) {
+        return storage.inHeap() ? 0 : SimilarityMatrix.pairs(size) * Double.BYTES;
+    }
+
+    /**
+     * Estimated comparisons to build the matrix: every pair, plus the sorting of the neighbors
+     */
+    long buildCost(SimilarityStorage storage) {
+        long cost = SimilarityMatrix.pairs(size);
+        if (keptNeighbors(storage) > 0 && size > 1)
+            cost += (long) size * (size - 1) * (64 - Long.numberOfLeadingZeros(size - 1));
+        return cost;
+    }
+
+    /**
+     * Estimated similarities read by a neighborhood query: the neighbors returned when they are sorted and their
+     * number is fixed, the whole row otherwise
+     */
+    long queryCost(SimilarityStorage storage) {
+        int others = Math.max(size - 1, 0);
+        if (keptNeighbors(storage) > 0 && neighborhoodSize > 0)
+            return Math.min(neighborhoodSize, others);
+        return others;
+    }
+}
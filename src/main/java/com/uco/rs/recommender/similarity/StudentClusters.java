@@ -0,0 +1,173 @@
+package com.uco.rs.recommender.similarity;
+
+import com.uco.rs.recommender.similarity.fast.PreferenceMatrix;
+import com.uco.rs.util.Parallel;
+import org.apache.mahout.clustering.streaming.cluster.BallKMeans;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.math.Centroid;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.neighborhood.BruteSearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Partition of the students in clusters of similar ratings, grades and branches, so that each student is only
+ * compared with the students of its own cluster and of the nearest ones. Clusters are found with the in-memory
+ * k-means of Mahout over the rows of the data models, each model normalized and weighted as in the similarity.
+ *
+ * @author Aurora Esteban Toscano
+ */
+final class StudentClusters {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    private static final int MAX_ITERATIONS = 10;
+
+    // Cluster of every student, by its index
+    private final int[] clusterOf;
+    // Pairs of clusters whose students are compared, symmetric
+    private final boolean[][] nearby;
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+    /**
+     * @param students  students in increasing order
+     * @param snapshots snapshots of the data models, null for the models that are not used
+     * @param weights   importance of each data model in the similarity
+     * @param clusters  number of clusters
+     * @param probes    number of clusters, nearest first, whose students are compared with those of a cluster
+     */
+    StudentClusters(long[] students, PreferenceMatrix[] snapshots, double[] weights, int clusters, int probes) {
+        List<Centroid> points = new ArrayList<>(students.length);
+        for (int i = 0; i < students.length; i++)
+            points.add(new Centroid(i, features(students[i], snapshots, weights), 1.0));
+
+        clusters = Math.max(1, Math.min(clusters, students.length));
+        BallKMeans kmeans = new BallKMeans(new BruteSearch(new EuclideanDistanceMeasure()), clusters,
+                MAX_ITERATIONS);
+        List<Vector> centroids = new ArrayList<>();
+        for (Vector centroid : kmeans.cluster(points))
+            centroids.add(centroid);
+
+        clusterOf = new int[students.length];
+        Parallel.forRange(students.length, i -> clusterOf[i] = nearest(points.get(i), centroids));
+
+        int k = centroids.size();
+        probes = Math.max(1, Math.min(probes, k));
+        nearby = new boolean[k][k];
+        for (int c = 0; c < k; c++) {
+            Integer[] order = new Integer[k];
+            double[] distances = new double[k];
+            for (int d = 0; d < k; d++) {
+                order[d] = d;
+                distances[d] = centroids.get(c).getDistanceSquared(centroids.get(d));
+            }
+            // The cluster itself first, then the nearest
+            distances[c] = -1.0;
+            Arrays.sort(order, (a, b) -> Double.compare(distances[a], distances[b]));
+            for (int p = 0; p < probes; p++) {
+                nearby[c][order[p]] = true;
+                nearby[order[p]][c] = true;
+            }
+        }
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+    /**
+     * Whether the similarity between two students, by their index, is computed
+     */
+    boolean compared(int i, int j) {
+        return nearby[clusterOf[i]][clusterOf[j]];
+    }
+
+    /**
+     * Whether the students of two clusters are compared
+     */
+    boolean nearby(int cluster1, int cluster2) {
+        return nearby[cluster1][cluster2];
+    }
+
+    int clusterOf(int student) {
+        return clusterOf[student];
+    }
+
+    int numStudents() {
+        return clusterOf.length;
+    }
+
+    int numClusters() {
+        return nearby.length;
+    }
+
+    /**
+     * Number of pairs of different students that are compared
+     */
+    long comparedPairs() {
+        long[] sizes = new long[nearby.length];
+        for (int cluster : clusterOf)
+            sizes[cluster]++;
+        long pairs = 0;
+        for (int a = 0; a < nearby.length; a++) {
+            pairs += sizes[a] * (sizes[a] - 1) / 2;
+            for (int b = a + 1; b < nearby.length; b++) {
+                if (nearby[a][b])
+                    pairs += sizes[a] * sizes[b];
+            }
+        }
+        return pairs;
+    }
+
+    private static int nearest(Vector point, List<Vector> centroids) {
+        int best = 0;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int c = 0; c < centroids.size(); c++) {
+            double distance = centroids.get(c).getDistanceSquared(point);
+            if (distance < bestDistance) {
+                best = c;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Rows of a student in every data model, one after another, each one with unit length times its weight
+     */
+    private static Vector features(long student, PreferenceMatrix[] snapshots, double[] weights) {
+        int cardinality = 0;
+        for (PreferenceMatrix snapshot : snapshots) {
+            if (snapshot != null)
+                cardinality += snapshot.numItems();
+        }
+
+        Vector features = new DenseVector(Math.max(cardinality, 1));
+        int offset = 0;
+        for (int m = 0; m < snapshots.length; m++) {
+            PreferenceMatrix snapshot = snapshots[m];
+            if (snapshot == null)
+                continue;
+            int row = snapshot.rowOrNegative(student);
+            if (row >= 0 && weights[m] > 0.0) {
+                float[] values = snapshot.values();
+                int[] columns = snapshot.columns();
+                double norm = 0.0;
+                for (int p = snapshot.rowStart(row); p < snapshot.rowEnd(row); p++)
+                    norm += (double) values[p] * values[p];
+                norm = Math.sqrt(norm);
+                if (norm > 0.0) {
+                    for (int p = snapshot.rowStart(row); p < snapshot.rowEnd(row); p++)
+                        features.setQuick(offset + columns[p], weights[m] * values[p] / norm);
+                }
+            }
+            offset += snapshot.numItems();
+        }
+        return features;
+    }
+}
@@ -1,23 +1,24 @@
 package com.uco.rs.recommender.similarity;
 
-import com.google.common.collect.Lists;
+import com.uco.rs.recommender.similarity.fast.AbstractFastSimilarity;
+import com.uco.rs.recommender.similarity.fast.PreferenceMatrix;
 import com.uco.rs.util.ClassInstantiator;
+import com.uco.rs.util.Parallel;
 import org.apache.commons.configuration2.Configuration;
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
-import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.similarity.PreferenceInferrer;
 import org.apache.mahout.cf.taste.similarity.UserSimilarity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
-import java.util.List;
-import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Content based similarity for users based on their grades, ratings and branches
@@ -30,22 +31,52 @@ public class StudentSimilarity implements UserSimilarity {
     // -------------------------------- Variables
     /////////////////////////////////////////////
 
-    private static ThreadLocal<DataModel> ratings = new ThreadLocal<>();
-    private static ThreadLocal<DataModel> grades = new ThreadLocal<>();
-    private static DataModel branches;
+    // Kept by the instance, since refreshes may come from any thread
+    private final DataModel ratings;
+    private final DataModel grades;
+    private final DataModel branches;
 
     private String ratingSimilarityName;
     private String gradeSimilarityName;
 
-    private static UserSimilarity ratingSimilarity;
-    private static UserSimilarity gradeSimilarity;
+    private UserSimilarity ratingSimilarity;
+    private UserSimilarity gradeSimilarity;
 
     // Ratings importance in the face of grades (between 0 and 1)
     private double wRatings;
     private double wGrades;
     private double wBranch;
 
-    private final FastByIDMap<FastByIDMap<Double>> similarityMaps = new FastByIDMap<>();
+    // Minimum density of a model to compute its similarities with the dense backend. It is off unless configured,
+    // since it keeps another triangle of doubles and dense copies of the model in the heap
+    public static final double DEFAULT_DENSE_THRESHOLD = Double.POSITIVE_INFINITY;
+    private double denseThreshold;
+    // How the final similarities are stored
+    private SimilarityStorage storage;
+
+    // Students and their similarities of the last computation
+    private volatile Similarities current;
+    // Snapshots of the data models the similarities were computed from, to find the students that change
+    private PreferenceMatrix[] snapshots;
+
+    // Approximate mode: number of clusters of students, 0 to compare every pair, and clusters compared with each one
+    private int numClusters;
+    private int clusterProbes;
+
+    // Lazy mode: instead of the whole matrix, the rows of the students are computed when they are first needed and
+    // kept in a cache of the given number of rows
+    private boolean lazy;
+    private int rowCacheSize;
+
+    // Only the similarities that reach this value are needed: the pairs whose upper bound is lower are left as NaN
+    private final double pruneThreshold;
+    // Neighbors returned by every neighborhood, or 0 if unknown. Quantized similarities only keep these sorted.
+    private final int neighborhoodSize;
+    // Work saved by the pruning, for the last computation
+    private final LongAdder pairs = new LongAdder();
+    private final LongAdder pruned = new LongAdder();
+
+    private static final String CACHE_NAME = "student";
 
     protected static final Logger log = LoggerFactory.getLogger(StudentSimilarity.class);
 
@@ -61,21 +92,74 @@ public class StudentSimilarity implements UserSimilarity {
      * @param config   Configuration
      */
     public StudentSimilarity(DataModel ratings, DataModel grades, DataModel branches, Configuration config) {
+        this(ratings, grades, branches, config, Double.NEGATIVE_INFINITY, 0);
+    }
+
+    /**
+     * Similarity for neighborhoods of the n most similar students. With quantized storage only the first n neighbors
+     * of every student are kept sorted.
+     *
+     * @param neighborhoodSize neighbors returned by every neighborhood
+     */
+    public StudentSimilarity(DataModel ratings, DataModel grades, DataModel branches, Configuration config,
+                             int neighborhoodSize) {
+        this(ratings, grades, branches, config, Double.NEGATIVE_INFINITY, neighborhoodSize);
+    }
+
+    /**
+     * Similarity for threshold neighborhoods. The similarities lower than the threshold are not needed, so the pairs
+     * of students that can't reach it for sure are not computed and get NaN.
+     *
+     * @param pruneThreshold minimum similarity that must be exact, or negative infinity to compute every pair
+     */
+    public StudentSimilarity(DataModel ratings, DataModel grades, DataModel branches, Configuration config,
+                             double pruneThreshold) {
+        this(ratings, grades, branches, config, pruneThreshold, 0);
+    }
+
+    private StudentSimilarity(DataModel ratings, DataModel grades, DataModel branches, Configuration config,
+                              double pruneThreshold, int neighborhoodSize) {
         configure(config);
+        this.pruneThreshold = pruneThreshold;
+        this.neighborhoodSize = neighborhoodSize;
 
-        StudentSimilarity.ratings.set(ratings);
-        StudentSimilarity.grades.set(grades);
-        StudentSimilarity.branches = branches;
+        this.ratings = ratings;
+        this.grades = grades;
+        this.branches = branches;
+
+        long[] students = SimilarityMatrix.sortedIDs(getStudents());
+        snapshots = snapshots();
+
+        if (lazy) {
+            log.info("Similarities based on student computed on demand");
+            startLazy(students);
+            return;
+        }
 
-        if (wRatings > 0.0)
-            ratingSimilarity = ClassInstantiator.instantiateUserSimilarity(ratingSimilarityName,
-                    StudentSimilarity.ratings.get());
-        if (wGrades > 0.0)
-            gradeSimilarity = ClassInstantiator.instantiateUserSimilarity(gradeSimilarityName,
-                    StudentSimilarity.grades.get());
+        // Similarities computed before from the same data and configuration. The cache keeps whole triangles, so the
+        // clustered matrices, which only keep the compared pairs, are not cached.
+        SimilarityCache cache = numClusters > 0 ? null : SimilarityCache.fromConfig(config);
+        String fingerprint = null;
+        if (cache != null) {
+            try {
+                // A pruned matrix only serves the same threshold
+                fingerprint = SimilarityCache.fingerprint(config, isPruned() ? "prune=" + pruneThreshold : "",
+                        ratings, grades, branches);
+            } catch (TasteException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+            SimilarityMatrix matrix = cache.load(CACHE_NAME, fingerprint, students, storage);
+            if (matrix != null) {
+                current = new Similarities(students, null, matrix, sortNeighbors(matrix), null);
+                return;
+            }
+        }
 
         log.info("Computing similarities based on student");
-        computeSimilaritiesByRows();
+        computeSimilarities(students);
+        if (cache != null)
+            cache.store(CACHE_NAME, fingerprint, students, current.matrix);
     }
 
 
@@ -83,143 +167,186 @@ public class StudentSimilarity implements UserSimilarity {
     // ---------------------------------- Methods
     /////////////////////////////////////////////
     /**
-     * Initialize the triangular matrix of similarities between students.
-     * Make parallelization by columns.
+     * Initialize the triangular matrix of similarities between students, or in approximate mode the blocks of the
+     * clusters that are compared, visiting only their pairs.
+     * Make parallelization by rows.
      */
-    @SuppressWarnings("unused")
-    private void computeSimilaritiesByCols() {
+    private void computeSimilarities(long[] students) {
+        initSimilarities();
+        pairs.reset();
+        pruned.reset();
+        StudentClusters clusters = numClusters > 0 ? clusterStudents(students) : null;
+        SimilarityMatrix matrix = clusters != null ? new ClusteredSimilarityMatrix(clusters, storage)
+                : SimilarityMatrix.create(students.length, storage);
+        Parallel.forRange(students.length, i -> {
+            int[] candidates = matrix.candidates(i);
+            if (candidates == null) {
+                for (int j = i + 1; j < students.length; j++)
+                    matrix.set(i, j, computeSimilarity(students, clusters, i, j));
+                return;
+            }
+            int from = Arrays.binarySearch(candidates, i) + 1;
+            for (int p = from; p < candidates.length; p++)
+                matrix.set(i, candidates[p], computeSimilarity(students[i], students[candidates[p]]));
+        });
+        current = new Similarities(students, clusters, matrix, sortNeighbors(matrix), null);
+        logPruning();
+    }
 
-        // Make the calculation of one similarity suitable of parallelize
-        class Wrapper implements Callable<Double[]> {
-            private long student1, student2;
+    /**
+     * Neighbors sorted for the matrix, unless it is out of the heap: every student with all the others takes as much
+     * heap as a matrix of doubles, so the neighborhoods of a mapped matrix are found scanning its rows. For the same
+     * reason a quantized matrix only keeps the neighbors that the neighborhoods return, if their size is known.
+     */
+    private SortedNeighbors sortNeighbors(SimilarityMatrix matrix) {
+        if (!storage.inHeap())
+            return null;
+        if (storage == SimilarityStorage.QUANTIZED)
+            return neighborhoodSize > 0 ? new SortedNeighbors(matrix, neighborhoodSize) : null;
+        return new SortedNeighbors(matrix);
+    }
 
-            private Wrapper(long st1, long st2) {
-                this.student1 = st1;
-                this.student2 = st2;
-            }
+    /**
+     * Get ready to compute rows on demand: only the single criterion similarities and the clusters are needed
+     */
+    private void startLazy(long[] students) {
+        initSimilarities();
+        pairs.reset();
+        pruned.reset();
+        StudentClusters clusters = numClusters > 0 ? clusterStudents(students) : null;
+        current = new Similarities(students, clusters, null, null, new RowCache(rowCacheSize));
+    }
 
-            @Override
-            public Double[] call() {
-                return new Double[]{(double) student2, computeSimilarity(student1, student2)};
-            }
-        }
+    private StudentClusters clusterStudents(long[] students) {
+        StudentClusters clusters = new StudentClusters(students, snapshots, new double[]{wRatings, wGrades, wBranch},
+                numClusters, clusterProbes);
+        log.info("Students grouped in {} clusters: {} of {} pairs of students compared", clusters.numClusters(),
+                clusters.comparedPairs(), (long) students.length * (students.length - 1) / 2);
+        return clusters;
+    }
 
-        int count = 1;
-        LongPrimitiveIterator rows = getStudents();
-        assert rows != null;
-        while (rows.hasNext()) {
-            long student1 = rows.nextLong();
-            // Get all students
-            LongPrimitiveIterator cols = getStudents();
-            // Only compute similarities in upper diagonal
-            cols.skip(count);
-
-            // Store similarities of student1 with all others in upper diagonal
-            FastByIDMap<Double> map = new FastByIDMap<>();
-
-            // Parallelize computing of similarities
-            ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-            Collection<Callable<Double[]>> collection = Lists.newArrayList();
-            while (cols.hasNext()) {
-                long student2 = cols.next();
-                collection.add(new Wrapper(student1, student2));
-            }
+    /**
+     * Similarity between two students by their index, or NaN if they are not compared in approximate mode
+     */
+    private double computeSimilarity(long[] students, StudentClusters clusters, int i, int j) {
+        if (clusters != null && !clusters.compared(i, j))
+            return Double.NaN;
+        return computeSimilarity(students[i], students[j]);
+    }
 
-            // Launch parallelization and store result
-            try {
-                List<Future<Double[]>> futures = executor.invokeAll(collection);
-                for (Future<Double[]> future : futures) {
-                    Double[] result = future.get();
-                    map.put(result[0].longValue(), result[1]);
-                }
-            } catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
-            }
-            executor.shutdown();
-            try {
-                executor.awaitTermination(5, TimeUnit.MINUTES);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    private boolean isPruned() {
+        return pruneThreshold != Double.NEGATIVE_INFINITY;
+    }
 
-            similarityMaps.put(student1, map);
-            count++;
-        }
+    private void logPruning() {
+        if (isPruned())
+            log.info("Pruning below {}: {} of {} pairs of students skipped", pruneThreshold, pruned.sum(),
+                    pairs.sum());
     }
 
     /**
-     * Initialize the triangular matrix of similarities between students.
-     * Make parallelization by rows.
+     * Pairs of students whose similarity was not computed since it can't reach the threshold, in the last computation
      */
-    private void computeSimilaritiesByRows() {
-        class Return {
-            private long student1;
-            private FastByIDMap<Double> similarities;
-
-            Return(long st1, FastByIDMap<Double> sims) {
-                this.student1 = st1;
-                this.similarities = sims;
-            }
-        }
+    public long getPrunedPairs() {
+        return pruned.sum();
+    }
 
-        // Make the calculation of one similarity suitable of parallelize
-        class Wrapper implements Callable<Return> {
-            private long student1;
-            private Iterator<Long> others;
+    /**
+     * Pairs of students considered in the last computation, pruned or not
+     */
+    public long getPairs() {
+        return pairs.sum();
+    }
 
-            private Wrapper(long st1, Iterator<Long> others) {
-                this.student1 = st1;
-                this.others = others;
-            }
+    /**
+     * Instantiate the single criteria similarities, only needed when there is something to compute. The dense
+     * backend keeps a triangle of doubles and dense copies of the model in the heap, so it is only used when the
+     * final similarities are doubles too: never in lazy mode, which avoids computing every pair up front, nor with
+     * the storages meant to save heap.
+     */
+    private void initSimilarities() {
+        double denseThreshold = lazy || storage != SimilarityStorage.DOUBLE ? Double.POSITIVE_INFINITY
+                : this.denseThreshold;
+        if (wRatings > 0.0 && ratingSimilarity == null)
+            ratingSimilarity = ClassInstantiator.instantiateUserSimilarity(ratingSimilarityName, ratings,
+                    denseThreshold);
+        if (wGrades > 0.0 && gradeSimilarity == null)
+            gradeSimilarity = ClassInstantiator.instantiateUserSimilarity(gradeSimilarityName, grades,
+                    denseThreshold);
+    }
 
-            @Override
-            public Return call() {
-                FastByIDMap<Double> similarities = new FastByIDMap<>();
-                for (Iterator<Long> it = others; it.hasNext(); ) {
-                    long student2 = it.next();
-                    double similarity = computeSimilarity(student1, student2);
-                    similarities.put(student2, similarity);
-                }
-                return new Return(student1, similarities);
+    /**
+     * Recompute the similarities of the students whose ratings, grades or branches changed since the last
+     * computation: a row of the matrix for each of them, or the whole matrix if there are new or removed students,
+     * subjects or branches.
+     */
+    private void recomputeChanged(PreferenceMatrix[] before, PreferenceMatrix[] after) {
+        FastIDSet changed = new FastIDSet();
+        for (int m = 0; m < after.length; m++) {
+            if (after[m] == null)
+                continue;
+            int[] rows = PreferenceMatrix.changedRows(before[m], after[m]);
+            if (rows == null) {
+                log.info("Recomputing similarities based on student");
+                long[] students = SimilarityMatrix.sortedIDs(getStudents());
+                if (lazy)
+                    startLazy(students);
+                else
+                    computeSimilarities(students);
+                return;
             }
+            for (int row : rows)
+                changed.add(after[m].userID(row));
+        }
+        if (changed.isEmpty())
+            return;
+        Similarities current = this.current;
+        if (lazy) {
+            // Every cached row has the changed students, so all of them are computed again when needed
+            current.rowCache.clear();
+            log.info("Similarities based on student discarded for {} students", changed.size());
+            return;
         }
 
-        // Parallelize computing of similarities
-        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        Collection<Callable<Return>> collection = Lists.newArrayList();
-
-        int count = 0;
-        LongPrimitiveIterator cols = getStudents();
-        assert cols != null;
-        while(cols.hasNext()) {
-            long student1 = cols.nextLong();
-            count++;
-            // Get all students
-            LongPrimitiveIterator rows = getStudents();
-            // Only compute similarities in upper diagonal
-            rows.skip(count);
-            collection.add(new Wrapper(student1, rows));
+        initSimilarities();
+        pairs.reset();
+        pruned.reset();
+        int[] rows = new int[changed.size()];
+        int size = 0;
+        for (LongPrimitiveIterator it = changed.iterator(); it.hasNext(); ) {
+            int i = current.indexOf(it.nextLong());
+            if (i >= 0)
+                rows[size++] = i;
         }
+        rows = Arrays.copyOf(rows, size);
+        double[][] computed = new double[size][];
+        for (int k = 0; k < size; k++)
+            computed[k] = computeRow(current, rows[k]);
+
+        // Readers keep the matrix and neighbors they got, and then get the new ones together
+        SimilarityMatrix matrix = OverlaySimilarityMatrix.replaceRows(current.matrix, rows, computed, storage);
+        SortedNeighbors neighbors = current.neighbors != null ? current.neighbors.update(matrix, rows) : null;
+        this.current = new Similarities(current.students, current.clusters, matrix, neighbors, null);
+        log.info("Similarities based on student updated for {} students", changed.size());
+        logPruning();
+    }
 
-        // Launch parallelization and store result
+    /**
+     * Current snapshots of the data models, null for the models that are not used
+     */
+    private PreferenceMatrix[] snapshots() {
+        DataModel[] models = {ratings, grades, branches};
+        PreferenceMatrix[] snapshots = new PreferenceMatrix[models.length];
         try {
-            List<Future<Return>> futures = executor.invokeAll(collection);
-            for (Future<Return> future : futures) {
-                Return result = future.get();
-                similarityMaps.put(result.student1, result.similarities);
+            for (int m = 0; m < models.length; m++) {
+                if (models[m] != null)
+                    snapshots[m] = PreferenceMatrix.of(models[m]);
             }
-        } catch (InterruptedException | ExecutionException e) {
+        } catch (TasteException e) {
             e.printStackTrace();
             System.exit(-1);
         }
-        executor.shutdown();
-        try {
-            executor.awaitTermination(5, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-
-
+        return snapshots;
     }
 
     /**
@@ -233,6 +360,21 @@ public class StudentSimilarity implements UserSimilarity {
     private double computeSimilarity(long student1, long student2) {
         double simRatings = 0.0, simGrades = 0.0, simBranch = 0.0;
 
+        // Branches are the cheapest criterion, so it is exact in the bound and reused
+        if (wBranch > 0.0)
+            simBranch = branchSimilarity(student1, student2);
+
+        if (isPruned()) {
+            pairs.increment();
+            double bound = upperBound(ratingSimilarity, wRatings, student1, student2) * wRatings
+                    + upperBound(gradeSimilarity, wGrades, student1, student2) * wGrades + simBranch * wBranch;
+            // Same expression as the similarity with every term raised, so it can't be lower
+            if (Double.isNaN(bound) || bound < pruneThreshold) {
+                pruned.increment();
+                return Double.NaN;
+            }
+        }
+
         try {
             if (wRatings > 0.0)
                 simRatings = ratingSimilarity.userSimilarity(student1, student2);
@@ -242,8 +384,6 @@ public class StudentSimilarity implements UserSimilarity {
             e.printStackTrace();
             System.exit(-1);
         }
-        if (wBranch > 0.0)
-            simBranch = branchSimilarity(student1, student2);
 
         // Similarities are combined whit a given weight between 0 and 1
         double similarity = simRatings * wRatings + simGrades * wGrades + simBranch * wBranch;
@@ -257,12 +397,29 @@ public class StudentSimilarity implements UserSimilarity {
         return similarity;
     }
 
+    /**
+     * Upper bound of a single criterion similarity, the greatest one unless it is computed by a native kernel
+     */
+    private static double upperBound(UserSimilarity similarity, double weight, long student1, long student2) {
+        if (weight <= 0.0)
+            return 0.0;
+        if (!(similarity instanceof AbstractFastSimilarity))
+            return 1.0;
+        try {
+            return ((AbstractFastSimilarity) similarity).upperBound(student1, student2);
+        } catch (TasteException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return 1.0;
+    }
+
     private LongPrimitiveIterator getStudents() {
         try {
-            if (ratings.get() != null)
-                return ratings.get().getUserIDs();
-            else if (grades.get() != null)
-                return grades.get().getUserIDs();
+            if (ratings != null)
+                return ratings.getUserIDs();
+            else if (grades != null)
+                return grades.getUserIDs();
             else if (branches != null)
                 return branches.getUserIDs();
         } catch (TasteException e) {
@@ -298,19 +455,96 @@ public class StudentSimilarity implements UserSimilarity {
      *
      * @param student1 ID of one student
      * @param student2 ID of another student
-     * @return final similarity
+     * @return final similarity, or NaN if any of the students is unknown
      */
     @Override
     public double userSimilarity(long student1, long student2) {
-        if (student1 < student2)
-            return similarityMaps.get(student1).get(student2);
-        else if (student2 < student1)
-            return similarityMaps.get(student2).get(student1);
-        return 1.0;
+        if (student1 == student2)
+            return 1.0;
+        Similarities current = this.current;
+        int i = current.indexOf(student1);
+        int j = current.indexOf(student2);
+        if (i < 0 || j < 0)
+            return Double.NaN;
+        if (current.rowCache != null) {
+            double[] row = current.rowCache.get(j);
+            return row != null ? row[i] : row(current, i)[j];
+        }
+        return current.matrix.get(i, j);
     }
 
+    /**
+     * Students and similarities of the last computation, to be read as a whole
+     */
+    Similarities current() {
+        return current;
+    }
+
+    /**
+     * Similarities of a student with every student by index, NaN with itself. In lazy mode the row is computed in
+     * parallel the first time it is needed and then kept in the cache; otherwise it is read from the matrix.
+     *
+     * @param current similarities where the index of the student was found
+     */
+    double[] row(Similarities current, int element) {
+        if (current.rowCache == null) {
+            SimilarityMatrix matrix = current.matrix;
+            double[] row = new double[matrix.size()];
+            for (int j = 0; j < row.length; j++)
+                row[j] = j == element ? Double.NaN : matrix.get(element, j);
+            return row;
+        }
+
+        RowCache rowCache = current.rowCache;
+        double[] row = rowCache.get(element);
+        if (row != null)
+            return row;
+        int generation = rowCache.generation();
+        double[] computed = computeRow(current, element);
+        rowCache.put(element, computed, generation);
+        return computed;
+    }
+
+    /**
+     * Compute in parallel the similarities of a student with every student by index, NaN with itself
+     */
+    private double[] computeRow(Similarities current, int element) {
+        long[] students = current.students;
+        double[] computed = new double[students.length];
+        // Pairs in the same order as when the matrix is built, since similarities aren't exactly symmetric
+        Parallel.forRange(computed.length, j -> {
+            if (j < element)
+                computed[j] = computeSimilarity(students, current.clusters, j, element);
+            else if (j > element)
+                computed[j] = computeSimilarity(students, current.clusters, element, j);
+            else
+                computed[j] = Double.NaN;
+        });
+        return computed;
+    }
+
+    /**
+     * Refresh the data models and update the similarities of the students whose data changed, at a cost linear in
+     * the number of students for each of them
+     */
     @Override
-    public void refresh(Collection<Refreshable> arg0) {
+    public synchronized void refresh(Collection<Refreshable> alreadyRefreshed) {
+        alreadyRefreshed = RefreshHelper.buildRefreshed(alreadyRefreshed);
+        for (DataModel model : new DataModel[]{ratings, grades, branches}) {
+            if (model != null) {
+                RefreshHelper.maybeRefresh(alreadyRefreshed, model);
+                PreferenceMatrix.invalidate(model);
+            }
+        }
+        // The single criteria similarities take the new snapshots
+        for (UserSimilarity similarity : new UserSimilarity[]{ratingSimilarity, gradeSimilarity}) {
+            if (similarity != null)
+                RefreshHelper.maybeRefresh(alreadyRefreshed, similarity);
+        }
+
+        PreferenceMatrix[] before = snapshots;
+        snapshots = snapshots();
+        recomputeChanged(before, snapshots);
     }
 
     @Override
@@ -337,5 +571,48 @@ public class StudentSimilarity implements UserSimilarity {
 
         ratingSimilarityName = config.getString("ratingsSimilarity");
         gradeSimilarityName = config.getString("gradesSimilarity");
+        denseThreshold = config.getDouble("denseThreshold", DEFAULT_DENSE_THRESHOLD);
+        storage = SimilarityStorage.fromConfig(config);
+        numClusters = config.getInt("clusters", 0);
+        clusterProbes = config.getInt("clusterProbes", 2);
+        lazy = config.getBoolean("lazy", false);
+        rowCacheSize = config.getInt("rowCacheSize", 256);
+    }
+
+    /**
+     * Students and their similarities from one computation. They are replaced as a whole, so the index of a student
+     * is always read along with the similarities it points to.
+     */
+    static final class Similarities {
+        // Students in increasing order
+        final long[] students;
+        // Clusters whose pairs of students get a similarity in approximate mode, or null
+        final StudentClusters clusters;
+        // Matrix, or null in lazy mode
+        final SimilarityMatrix matrix;
+        // Neighbors of every student sorted by similarity, or null if there are none for the storage or lazy
+        final SortedNeighbors neighbors;
+        // Rows computed on demand in lazy mode, or null
+        final RowCache rowCache;
+
+        private Similarities(long[] students, StudentClusters clusters, SimilarityMatrix matrix,
+                             SortedNeighbors neighbors, RowCache rowCache) {
+            this.students = students;
+            this.clusters = clusters;
+            this.matrix = matrix;
+            this.neighbors = neighbors;
+            this.rowCache = rowCache;
+        }
+
+        /**
+         * Position of a student, or a negative value if it is unknown
+         */
+        int indexOf(long student) {
+            return Arrays.binarySearch(students, student);
+        }
+
+        long studentID(int index) {
+            return students[index];
+        }
     }
 }
@@ -0,0 +1,126 @@
+package com.uco.rs.recommender.similarity.fast;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.common.Weighting;
+import org.apache.mahout.cf.taste.model.DataModel;
+
+/**
+ * Similarities computed from the sums of the values co-rated by two users, in the same way as Mahout's
+ * {@code AbstractSimilarity}, weighted or not.
+ *
+ * @author Aurora Esteban Toscano
+ */
+abstract class AbstractFastMergeSimilarity extends AbstractFastSimilarity {
+
+    private final boolean centerData;
+    private final Weighting weighting;
+
+    AbstractFastMergeSimilarity(DataModel dataModel, Weighting weighting, boolean centerData) throws TasteException {
+        super(dataModel);
+        this.centerData = centerData;
+        this.weighting = weighting;
+    }
+
+    public final Weighting getWeighting() {
+        return weighting;
+    }
+
+    /**
+     * Compute the similarity from the figures of the co-rated items
+     *
+     * @param n          number of co-rated items
+     * @param sumXY      sum of the products of both users values
+     * @param sumX2      sum of the squares of the first user values
+     * @param sumY2      sum of the squares of the second user values
+     * @param sumXYdiff2 sum of the squares of the differences in values
+     * @return similarity value, or {@link Double#NaN} if it can't be computed
+     */
+    abstract double computeResult(int n, double sumXY, double sumX2, double sumY2, double sumXYdiff2);
+
+    @Override
+    public double rowSimilarity(PreferenceMatrix matrix, int row1, int row2) {
+        int[] columns = matrix.columns();
+        float[] values = matrix.values();
+        int x = matrix.rowStart(row1);
+        int xEnd = matrix.rowEnd(row1);
+        int y = matrix.rowStart(row2);
+        int yEnd = matrix.rowEnd(row2);
+
+        if (x == xEnd || y == yEnd)
+            return Double.NaN;
+
+        double sumX = 0.0;
+        double sumX2 = 0.0;
+        double sumY = 0.0;
+        double sumY2 = 0.0;
+        double sumXY = 0.0;
+        double sumXYdiff2 = 0.0;
+        int count = 0;
+
+        while (x < xEnd && y < yEnd) {
+            int cx = columns[x];
+            int cy = columns[y];
+            if (cx < cy) {
+                x++;
+            } else if (cx > cy) {
+                y++;
+            } else {
+                // Both users expressed a preference for the item
+                double vx = values[x++];
+                double vy = values[y++];
+                sumXY += vx * vy;
+                sumX += vx;
+                sumX2 += vx * vx;
+                sumY += vy;
+                sumY2 += vy * vy;
+                double diff = vx - vy;
+                sumXYdiff2 += diff * diff;
+                count++;
+            }
+        }
+
+        return result(matrix, count, sumX, sumY, sumXY, sumX2, sumY2, sumXYdiff2);
+    }
+
+    /**
+     * Without co-rated items the similarity is NaN, and so it is with a single one once the data is centered
+     */
+    @Override
+    public double rowUpperBound(PreferenceMatrix matrix, int row1, int row2) {
+        int count = intersectionSize(matrix, row1, row2);
+        if (count == 0 || (centerData && count == 1))
+            return Double.NaN;
+        return 1.0;
+    }
+
+    /**
+     * Final similarity from the raw sums over the co-rated items, centering them if the measure requires it. When
+     * weighted, it is pushed towards the extremes the more items are co-rated out of those in the matrix.
+     */
+    final double result(PreferenceMatrix matrix, int count, double sumX, double sumY, double sumXY, double sumX2, double sumY2,
+                        double sumXYdiff2) {
+        double result;
+        if (centerData) {
+            double meanX = sumX / count;
+            double meanY = sumY / count;
+            double centeredSumXY = sumXY - meanY * sumX;
+            double centeredSumX2 = sumX2 - meanX * sumX;
+            double centeredSumY2 = sumY2 - meanY * sumY;
+            result = computeResult(count, centeredSumXY, centeredSumX2, centeredSumY2, sumXYdiff2);
+        } else {
+            result = computeResult(count, sumXY, sumX2, sumY2, sumXYdiff2);
+        }
+
+        if (!Double.isNaN(result)) {
+            if (weighting == Weighting.WEIGHTED) {
+                double scaleFactor = 1.0 - count / (double) (matrix.numItems() + 1);
+                if (result < 0.0)
+                    result = -1.0 + scaleFactor * (1.0 + result);
+                else
+                    result = 1.0 - scaleFactor * (1.0 - result);
+            }
+            result = clamp(result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,178 @@
+package com.uco.rs.recommender.similarity.fast;
+
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.PreferenceInferrer;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+import java.util.Collection;
+
+/**
+ * Base of the user similarities that work directly over a {@link PreferenceMatrix} snapshot of the data model.
+ * Subclasses only define how two rows of the matrix are compared. The kernels only see the preferences in the data
+ * model, so when a preference inferrer is set the similarities are taken from the Mahout similarity they reproduce,
+ * which accepts it or not in the same way.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public abstract class AbstractFastSimilarity implements UserSimilarity {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    private final DataModel dataModel;
+    private volatile PreferenceMatrix matrix;
+    // Mahout similarity with the preference inferrer, or null while none is set
+    private volatile UserSimilarity inferring;
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+    AbstractFastSimilarity(DataModel dataModel) throws TasteException {
+        this.dataModel = dataModel;
+        this.matrix = PreferenceMatrix.of(dataModel);
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+
+    /**
+     * Compute the similarity between two rows of the matrix
+     *
+     * @param matrix snapshot of the data model
+     * @param row1   row of one user
+     * @param row2   row of another user
+     * @return similarity in [-1,1], or {@link Double#NaN} if it can't be computed
+     */
+    public abstract double rowSimilarity(PreferenceMatrix matrix, int row1, int row2);
+
+    /**
+     * New instance of the Mahout similarity that this one reproduces, over the same data model
+     */
+    abstract UserSimilarity mahoutSimilarity() throws TasteException;
+
+    @Override
+    public double userSimilarity(long userID1, long userID2) throws TasteException {
+        UserSimilarity inferring = this.inferring;
+        if (inferring != null)
+            return inferring.userSimilarity(userID1, userID2);
+        PreferenceMatrix m = matrix;
+        return rowSimilarity(m, m.row(userID1), m.row(userID2));
+    }
+
+    /**
+     * Cheap upper bound of the similarity between two rows of the matrix, to skip the pairs that can't reach a
+     * threshold. By default the greatest similarity.
+     *
+     * @return a value not lower than the similarity, or {@link Double#NaN} if the similarity is NaN for sure
+     */
+    public double rowUpperBound(PreferenceMatrix matrix, int row1, int row2) {
+        return 1.0;
+    }
+
+    /**
+     * Cheap upper bound of the similarity between two users
+     *
+     * @see #rowUpperBound(PreferenceMatrix, int, int)
+     */
+    public double upperBound(long userID1, long userID2) throws TasteException {
+        // Inferred preferences may add items in common
+        if (inferring != null)
+            return 1.0;
+        PreferenceMatrix m = matrix;
+        return rowUpperBound(m, m.row(userID1), m.row(userID2));
+    }
+
+    public final DataModel getDataModel() {
+        return dataModel;
+    }
+
+    public final PreferenceMatrix getMatrix() {
+        return matrix;
+    }
+
+    /**
+     * Whether the similarities come from the Mahout similarity with a preference inferrer instead of the kernel
+     */
+    public final boolean infersPreferences() {
+        return inferring != null;
+    }
+
+    /**
+     * Set the inferrer in the Mahout similarity that this one reproduces, which computes the similarities from then
+     * on. It fails as that similarity does, if it doesn't accept inferrers.
+     */
+    @Override
+    public void setPreferenceInferrer(PreferenceInferrer inferrer) {
+        try {
+            UserSimilarity similarity = mahoutSimilarity();
+            similarity.setPreferenceInferrer(inferrer);
+            inferring = similarity;
+        } catch (TasteException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        alreadyRefreshed = RefreshHelper.buildRefreshed(alreadyRefreshed);
+        RefreshHelper.maybeRefresh(alreadyRefreshed, dataModel);
+        PreferenceMatrix.invalidate(dataModel);
+        UserSimilarity inferring = this.inferring;
+        if (inferring != null)
+            RefreshHelper.maybeRefresh(alreadyRefreshed, inferring);
+        try {
+            matrix = PreferenceMatrix.of(dataModel);
+        } catch (TasteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Number of items shared by two rows, with the bitset kernel when it is enabled and the matrix is dense enough
+     */
+    static int intersectionSize(PreferenceMatrix matrix, int row1, int row2) {
+        if (BitKernels.isEnabled() && matrix.hasCompactBits())
+            return BitKernels.intersectionSize(matrix.bits(), matrix.wordsPerRow(), row1, row2);
+
+        int[] columns = matrix.columns();
+        int x = matrix.rowStart(row1);
+        int xEnd = matrix.rowEnd(row1);
+        int y = matrix.rowStart(row2);
+        int yEnd = matrix.rowEnd(row2);
+        int count = 0;
+        while (x < xEnd && y < yEnd) {
+            int cx = columns[x];
+            int cy = columns[y];
+            if (cx < cy) {
+                x++;
+            } else if (cx > cy) {
+                y++;
+            } else {
+                count++;
+                x++;
+                y++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Make sure the result is not accidentally a little outside [-1.0, 1.0] due to rounding
+     */
+    static double clamp(double result) {
+        if (result < -1.0)
+            return -1.0;
+        if (result > 1.0)
+            return 1.0;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[dataModel:" + dataModel + ']';
+    }
+}
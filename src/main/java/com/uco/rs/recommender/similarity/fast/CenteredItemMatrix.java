@@ -0,0 +1,96 @@
+package com.uco.rs.recommender.similarity.fast;
+
+import java.util.Arrays;
+
+/**
+ * Item-major view of a {@link PreferenceMatrix} whose values are centered on the mean preference of their user, as
+ * item based adjusted measures need them. Each item is a column whose user rows, in increasing order, and centered
+ * values are stored contiguously, so two items are compared with a merge over primitive arrays.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class CenteredItemMatrix {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    private final double[] userMeans;
+    // Column c spans positions [columnStart[c], columnStart[c + 1]) of rows and centered
+    private final int[] columnStart;
+    private final int[] rows;
+    private final double[] centered;
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+    CenteredItemMatrix(PreferenceMatrix matrix) {
+        int[] columns = matrix.columns();
+        float[] values = matrix.values();
+
+        userMeans = new double[matrix.numUsers()];
+        columnStart = new int[matrix.numItems() + 1];
+        for (int row = 0; row < matrix.numUsers(); row++) {
+            double sum = 0.0;
+            for (int p = matrix.rowStart(row); p < matrix.rowEnd(row); p++) {
+                sum += values[p];
+                columnStart[columns[p] + 1]++;
+            }
+            int n = matrix.rowLength(row);
+            userMeans[row] = n > 0 ? sum / n : 0.0;
+        }
+        for (int c = 0; c < matrix.numItems(); c++)
+            columnStart[c + 1] += columnStart[c];
+
+        // Rows are visited in increasing order, so every column ends up ordered by row
+        rows = new int[columns.length];
+        centered = new double[columns.length];
+        int[] next = Arrays.copyOf(columnStart, matrix.numItems());
+        for (int row = 0; row < matrix.numUsers(); row++) {
+            for (int p = matrix.rowStart(row); p < matrix.rowEnd(row); p++) {
+                int q = next[columns[p]]++;
+                rows[q] = row;
+                centered[q] = values[p] - userMeans[row];
+            }
+        }
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+
+    /**
+     * Mean preference of the user of a row, 0 if it has none
+     */
+    public double userMean(int row) {
+        return userMeans[row];
+    }
+
+    /**
+     * First position of a column in {@link #rows()} and {@link #centered()}
+     */
+    public int columnStart(int column) {
+        return columnStart[column];
+    }
+
+    /**
+     * Position following the last one of a column in {@link #rows()} and {@link #centered()}
+     */
+    public int columnEnd(int column) {
+        return columnStart[column + 1];
+    }
+
+    /**
+     * User row of every preference, grouped by column. Shared array that must not be modified.
+     */
+    public int[] rows() {
+        return rows;
+    }
+
+    /**
+     * Value of every preference minus the mean of its user, grouped by column. Shared array that must not be
+     * modified.
+     */
+    public double[] centered() {
+        return centered;
+    }
+}
@@ -0,0 +1,237 @@
+package com.uco.rs.recommender.similarity.fast;
+
+import com.uco.rs.recommender.similarity.DoubleSimilarityMatrix;
+import com.uco.rs.recommender.similarity.SimilarityMatrix;
+import com.uco.rs.util.Parallel;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Backend for the co-rated similarities (Pearson, uncentered cosine and Euclidean) when the rating matrix is dense
+ * enough. The snapshot is expanded to dense item-major matrices of values and masks, and every pairwise sum is obtained
+ * with a cache-tiled product of the sparse rows by the dense matrix. Each sum is a masked dot product:
+ * <ul>
+ * <li>sumXY = X * X', sumX = X * M', sumY = M * X'</li>
+ * <li>sumX2 = X^2 * M', sumY2 = M * X^2', count = M * M'</li>
+ * <li>sumXYdiff2 = sum over co-rated items of (x - y)^2</li>
+ * </ul>
+ * Items are accumulated in increasing order and unrated entries only add zeros, so the sums, and therefore the
+ * similarities, are the same as those of the merge-join kernel.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class DenseGramSimilarity extends AbstractFastSimilarity {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    // Users per side of a tile, so the sums of a row of the tile stay in cache
+    private static final int TILE = 256;
+
+    private final AbstractFastMergeSimilarity exact;
+    private final boolean needsSums;
+    private final boolean needsProducts;
+    private final boolean needsDifferences;
+
+    private volatile SimilarityMatrix similarities;
+
+    protected static final Logger log = LoggerFactory.getLogger(DenseGramSimilarity.class);
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+
+    /**
+     * Precompute all the similarities of a merge-join kernel over its data model
+     *
+     * @param exact merge-join kernel whose measure is reproduced
+     */
+    DenseGramSimilarity(AbstractFastMergeSimilarity exact) throws TasteException {
+        super(exact.getDataModel());
+        this.exact = exact;
+        this.needsSums = exact instanceof FastPearsonCorrelationSimilarity;
+        this.needsDifferences = exact instanceof FastEuclideanDistanceSimilarity;
+        this.needsProducts = !needsDifferences;
+        this.similarities = build(getMatrix());
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+
+    /**
+     * Fraction of the cells of the matrix that hold a preference
+     */
+    public static double density(PreferenceMatrix matrix) {
+        double cells = (double) matrix.numUsers() * matrix.numItems();
+        return cells == 0 ? 0.0 : matrix.numPreferences() / cells;
+    }
+
+    @Override
+    public double rowSimilarity(PreferenceMatrix matrix, int row1, int row2) {
+        if (row1 == row2)
+            return exact.rowSimilarity(matrix, row1, row2);
+        return similarities.get(row1, row2);
+    }
+
+    @Override
+    UserSimilarity mahoutSimilarity() throws TasteException {
+        return exact.mahoutSimilarity();
+    }
+
+    /**
+     * Every similarity is already computed, so the bound is the similarity itself
+     */
+    @Override
+    public double rowUpperBound(PreferenceMatrix matrix, int row1, int row2) {
+        return rowSimilarity(matrix, row1, row2);
+    }
+
+    /**
+     * Refresh the data model. Only the rows of the users whose preferences changed are recomputed, with the exact
+     * kernel, unless the users or the items of the model changed.
+     */
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        PreferenceMatrix before = getMatrix();
+        super.refresh(alreadyRefreshed);
+        PreferenceMatrix after = getMatrix();
+
+        int[] changed = PreferenceMatrix.changedRows(before, after);
+        if (changed == null) {
+            similarities = build(after);
+            return;
+        }
+        SimilarityMatrix current = similarities;
+        for (int row : changed) {
+            // Pairs in the same order as when the matrix is built, since the kernels aren't exactly symmetric
+            Parallel.forRange(after.numUsers(), other -> {
+                if (other < row)
+                    current.set(other, row, exact.rowSimilarity(after, other, row));
+                else if (other > row)
+                    current.set(row, other, exact.rowSimilarity(after, row, other));
+            });
+        }
+        if (changed.length > 0)
+            log.info("Dense similarities of {} users updated", changed.length);
+    }
+
+    private SimilarityMatrix build(PreferenceMatrix matrix) {
+        long start = System.currentTimeMillis();
+        int n = matrix.numUsers();
+        int d = matrix.numItems();
+
+        // Dense item-major copies, so the users of a tile are contiguous for every item: values (0 if unrated) and
+        // masks of rated cells
+        float[] xT = new float[n * d];
+        float[] maskT = new float[n * d];
+        int[] columns = matrix.columns();
+        float[] values = matrix.values();
+        for (int row = 0; row < n; row++) {
+            for (int p = matrix.rowStart(row); p < matrix.rowEnd(row); p++) {
+                int cell = columns[p] * n + row;
+                xT[cell] = values[p];
+                maskT[cell] = 1f;
+            }
+        }
+
+        // Enumerate the tiles of the upper triangle so all threads get a similar amount of work
+        int nTiles = (n + TILE - 1) / TILE;
+        int[] tileRows = new int[nTiles * (nTiles + 1) / 2];
+        int[] tileCols = new int[tileRows.length];
+        int t = 0;
+        for (int bi = 0; bi < nTiles; bi++) {
+            for (int bj = bi; bj < nTiles; bj++) {
+                tileRows[t] = bi;
+                tileCols[t] = bj;
+                t++;
+            }
+        }
+
+        SimilarityMatrix result = new DoubleSimilarityMatrix(n);
+        Parallel.forRange(tileRows.length, tile -> computeTile(matrix, result, xT, maskT,
+                tileRows[tile] * TILE, tileCols[tile] * TILE));
+
+        log.info("Dense similarities of {} users over {} items computed in {} ms", n, d,
+                System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * Sums of one tile of pairs. Every row of the tile walks its own preferences in increasing order of items and
+     * updates the sums against all the columns of the tile at once.
+     */
+    private void computeTile(PreferenceMatrix matrix, SimilarityMatrix result, float[] xT, float[] maskT,
+                             int i0, int j0) {
+        int n = matrix.numUsers();
+        int i1 = Math.min(n, i0 + TILE);
+        int j1 = Math.min(n, j0 + TILE);
+        int[] columns = matrix.columns();
+        float[] values = matrix.values();
+
+        double[] sumXY = new double[TILE];
+        double[] sumX = new double[TILE];
+        double[] sumY = new double[TILE];
+        double[] sumX2 = new double[TILE];
+        double[] sumY2 = new double[TILE];
+        double[] sumXYdiff2 = new double[TILE];
+        double[] count = new double[TILE];
+
+        for (int i = i0; i < i1; i++) {
+            int from = Math.max(j0, i + 1);
+            if (from >= j1)
+                continue;
+            int width = j1 - from;
+            Arrays.fill(count, 0, width, 0.0);
+            Arrays.fill(sumXY, 0, width, 0.0);
+            Arrays.fill(sumX, 0, width, 0.0);
+            Arrays.fill(sumY, 0, width, 0.0);
+            Arrays.fill(sumX2, 0, width, 0.0);
+            Arrays.fill(sumY2, 0, width, 0.0);
+            Arrays.fill(sumXYdiff2, 0, width, 0.0);
+
+            // Items not rated by the first user only add zeros, so they are skipped
+            for (int p = matrix.rowStart(i); p < matrix.rowEnd(i); p++) {
+                int base = columns[p] * n + from;
+                double vx = values[p];
+                double vx2 = vx * vx;
+                for (int c = 0; c < width; c++)
+                    count[c] += maskT[base + c];
+                if (needsProducts) {
+                    for (int c = 0; c < width; c++) {
+                        double vy = xT[base + c];
+                        sumXY[c] += vx * vy;
+                        sumX2[c] += vx2 * maskT[base + c];
+                        sumY2[c] += vy * vy;
+                    }
+                }
+                if (needsSums) {
+                    for (int c = 0; c < width; c++) {
+                        sumX[c] += vx * maskT[base + c];
+                        sumY[c] += xT[base + c];
+                    }
+                }
+                if (needsDifferences) {
+                    for (int c = 0; c < width; c++) {
+                        double diff = vx - xT[base + c];
+                        sumXYdiff2[c] += maskT[base + c] * diff * diff;
+                    }
+                }
+            }
+
+            for (int c = 0; c < width; c++) {
+                double similarity = Double.NaN;
+                if (matrix.rowLength(i) > 0 && matrix.rowLength(from + c) > 0)
+                    similarity = exact.result(matrix, (int) count[c], sumX[c], sumY[c], sumXY[c], sumX2[c], sumY2[c],
+                            sumXYdiff2[c]);
+                result.set(i, from + c, similarity);
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.uco.rs.recommender.similarity.fast;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.similarity.CityBlockSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+/**
+ * Native counterpart of Mahout's {@code CityBlockSimilarity}
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class FastCityBlockSimilarity extends AbstractFastSimilarity {
+
+    public FastCityBlockSimilarity(DataModel dataModel) throws TasteException {
+        super(dataModel);
+    }
+
+    @Override
+    public double rowSimilarity(PreferenceMatrix matrix, int row1, int row2) {
+        int distance = matrix.rowLength(row1) + matrix.rowLength(row2) - 2 * intersectionSize(matrix, row1, row2);
+        return 1.0 / (1.0 + distance);
+    }
+
+    @Override
+    UserSimilarity mahoutSimilarity() throws TasteException {
+        return new CityBlockSimilarity(getDataModel());
+    }
+}
@@ -0,0 +1,35 @@
+package com.uco.rs.recommender.similarity.fast;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.common.Weighting;
+import org.apache.mahout.cf.taste.impl.similarity.EuclideanDistanceSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+/**
+ * Native counterpart of Mahout's {@code EuclideanDistanceSimilarity}
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class FastEuclideanDistanceSimilarity extends AbstractFastMergeSimilarity {
+
+    public FastEuclideanDistanceSimilarity(DataModel dataModel) throws TasteException {
+        this(dataModel, Weighting.UNWEIGHTED);
+    }
+
+    public FastEuclideanDistanceSimilarity(DataModel dataModel, Weighting weighting) throws TasteException {
+        super(dataModel, weighting, false);
+        Preconditions.checkArgument(dataModel.hasPreferenceValues(), "DataModel doesn't have preference values");
+    }
+
+    @Override
+    double computeResult(int n, double sumXY, double sumX2, double sumY2, double sumXYdiff2) {
+        return 1.0 / (1.0 + Math.sqrt(sumXYdiff2) / Math.sqrt(n));
+    }
+
+    @Override
+    UserSimilarity mahoutSimilarity() throws TasteException {
+        return new EuclideanDistanceSimilarity(getDataModel(), getWeighting());
+    }
+}
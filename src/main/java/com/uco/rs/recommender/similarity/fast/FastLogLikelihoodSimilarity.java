@@ -0,0 +1,38 @@
+package com.uco.rs.recommender.similarity.fast;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.similarity.LogLikelihoodSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.apache.mahout.math.stats.LogLikelihood;
+
+/**
+ * Native counterpart of Mahout's {@code LogLikelihoodSimilarity}
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class FastLogLikelihoodSimilarity extends AbstractFastSimilarity {
+
+    public FastLogLikelihoodSimilarity(DataModel dataModel) throws TasteException {
+        super(dataModel);
+    }
+
+    @Override
+    public double rowSimilarity(PreferenceMatrix matrix, int row1, int row2) {
+        long prefs1Size = matrix.rowLength(row1);
+        long prefs2Size = matrix.rowLength(row2);
+        long intersectionSize = intersectionSize(matrix, row1, row2);
+        if (intersectionSize == 0)
+            return Double.NaN;
+
+        long numItems = matrix.numItems();
+        double logLikelihood = LogLikelihood.logLikelihoodRatio(intersectionSize, prefs2Size - intersectionSize,
+                prefs1Size - intersectionSize, numItems - prefs1Size - prefs2Size + intersectionSize);
+        return 1.0 - 1.0 / (1.0 + logLikelihood);
+    }
+
+    @Override
+    UserSimilarity mahoutSimilarity() throws TasteException {
+        return new LogLikelihoodSimilarity(getDataModel());
+    }
+}
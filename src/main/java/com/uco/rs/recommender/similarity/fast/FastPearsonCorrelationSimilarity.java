@@ -0,0 +1,41 @@
+package com.uco.rs.recommender.similarity.fast;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.common.Weighting;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+/**
+ * Native counterpart of Mahout's {@code PearsonCorrelationSimilarity}
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class FastPearsonCorrelationSimilarity extends AbstractFastMergeSimilarity {
+
+    public FastPearsonCorrelationSimilarity(DataModel dataModel) throws TasteException {
+        this(dataModel, Weighting.UNWEIGHTED);
+    }
+
+    public FastPearsonCorrelationSimilarity(DataModel dataModel, Weighting weighting) throws TasteException {
+        super(dataModel, weighting, true);
+        Preconditions.checkArgument(dataModel.hasPreferenceValues(), "DataModel doesn't have preference values");
+    }
+
+    @Override
+    double computeResult(int n, double sumXY, double sumX2, double sumY2, double sumXYdiff2) {
+        if (n == 0)
+            return Double.NaN;
+        // Data is centered, so sums of X and Y are 0
+        double denominator = Math.sqrt(sumX2) * Math.sqrt(sumY2);
+        if (denominator == 0.0)
+            return Double.NaN;
+        return sumXY / denominator;
+    }
+
+    @Override
+    UserSimilarity mahoutSimilarity() throws TasteException {
+        return new PearsonCorrelationSimilarity(getDataModel(), getWeighting());
+    }
+}
@@ -0,0 +1,87 @@
+package com.uco.rs.recommender.similarity.fast;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Correspondence between the Mahout user similarities that can be named in the configuration files and their
+ * native implementations in this package.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class FastSimilarities {
+
+    private static final String MAHOUT_PACKAGE = "org.apache.mahout.cf.taste.impl.similarity.";
+
+    private static final Map<String, Class<? extends AbstractFastSimilarity>> natives = new HashMap<>();
+    static {
+        natives.put(MAHOUT_PACKAGE + "PearsonCorrelationSimilarity", FastPearsonCorrelationSimilarity.class);
+        natives.put(MAHOUT_PACKAGE + "EuclideanDistanceSimilarity", FastEuclideanDistanceSimilarity.class);
+        natives.put(MAHOUT_PACKAGE + "SpearmanCorrelationSimilarity", FastSpearmanCorrelationSimilarity.class);
+        natives.put(MAHOUT_PACKAGE + "UncenteredCosineSimilarity", FastUncenteredCosineSimilarity.class);
+        natives.put(MAHOUT_PACKAGE + "CityBlockSimilarity", FastCityBlockSimilarity.class);
+        natives.put(MAHOUT_PACKAGE + "LogLikelihoodSimilarity", FastLogLikelihoodSimilarity.class);
+        natives.put(MAHOUT_PACKAGE + "TanimotoCoefficientSimilarity", FastTanimotoCoefficientSimilarity.class);
+    }
+
+    protected static final Logger log = LoggerFactory.getLogger(FastSimilarities.class);
+
+    private FastSimilarities() {
+    }
+
+    /**
+     * Native implementation of a similarity class
+     *
+     * @param className fully qualified name of a Mahout similarity
+     * @return native class, or null if there is none for the given name
+     */
+    public static Class<? extends AbstractFastSimilarity> nativeFor(String className) {
+        return natives.get(className);
+    }
+
+    /**
+     * Turn on or off the bitset kernels of the set-based similarities (Tanimoto, city block and log-likelihood),
+     * overriding the capability check
+     */
+    public static void useBitsets(boolean enabled) {
+        BitKernels.setEnabled(enabled);
+    }
+
+    public static boolean usesBitsets() {
+        return BitKernels.isEnabled();
+    }
+
+    /**
+     * Replace a co-rated similarity by its dense Gram-matrix backend when the density of its data model reaches the
+     * given threshold
+     *
+     * @param similarity     similarity to replace
+     * @param denseThreshold minimum fraction of rated cells to use the dense backend
+     * @return the dense backend, or the given similarity if it doesn't apply
+     */
+    public static UserSimilarity denseIfWorthwhile(UserSimilarity similarity, double denseThreshold)
+            throws TasteException {
+        // The dense backend only reproduces the kernel, not the inferred preferences
+        if (!(similarity instanceof AbstractFastMergeSimilarity)
+                || ((AbstractFastMergeSimilarity) similarity).infersPreferences())
+            return similarity;
+
+        AbstractFastMergeSimilarity merge = (AbstractFastMergeSimilarity) similarity;
+        PreferenceMatrix matrix = merge.getMatrix();
+        double density = DenseGramSimilarity.density(matrix);
+        // The dense copies and the triangle of similarities are Java arrays
+        long pairs = (long) matrix.numUsers() * (matrix.numUsers() - 1) / 2;
+        if (density < denseThreshold || (long) matrix.numUsers() * matrix.numItems() > Integer.MAX_VALUE
+                || pairs >= Integer.MAX_VALUE)
+            return similarity;
+
+        log.info("Density {} reaches {}: using dense backend for {}", density, denseThreshold,
+                similarity.getClass().getSimpleName());
+        return new DenseGramSimilarity(merge);
+    }
+}
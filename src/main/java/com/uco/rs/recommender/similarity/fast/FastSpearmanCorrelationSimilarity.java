@@ -0,0 +1,126 @@
+package com.uco.rs.recommender.similarity.fast;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.similarity.SpearmanCorrelationSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+import java.util.Arrays;
+
+/**
+ * Native counterpart of Mahout's {@code SpearmanCorrelationSimilarity}.
+ *
+ * Mahout ranks the co-rated items of both users by sorting the two preference arrays on every pair. Here the order
+ * by value of each row is taken from {@link PreferenceMatrix#valueRanks()}, computed once per snapshot, and the rank
+ * of a co-rated item among the co-rated ones is counted over a bitset of those positions. The comparison becomes a
+ * merge-join over precomputed ranks, with exactly the same ties as Mahout.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class FastSpearmanCorrelationSimilarity extends AbstractFastSimilarity {
+
+    // Per thread buffers to rank the rows without allocating on every pair
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    public FastSpearmanCorrelationSimilarity(DataModel dataModel) throws TasteException {
+        super(dataModel);
+        getMatrix().valueRanks();
+    }
+
+    @Override
+    public double rowSimilarity(PreferenceMatrix matrix, int row1, int row2) {
+        int xLength = matrix.rowLength(row1);
+        int yLength = matrix.rowLength(row2);
+        if (xLength <= 1 || yLength <= 1)
+            return Double.NaN;
+
+        int[] columns = matrix.columns();
+        int[] ranks = matrix.valueRanks();
+        Scratch s = scratch.get();
+        int xWords = (xLength + 63) >>> 6;
+        int yWords = (yLength + 63) >>> 6;
+        s.ensureCapacity(Math.min(xLength, yLength), Math.max(xWords, yWords));
+
+        // Collect the value ranks of the co-rated items of each row
+        int x = matrix.rowStart(row1);
+        int xEnd = matrix.rowEnd(row1);
+        int y = matrix.rowStart(row2);
+        int yEnd = matrix.rowEnd(row2);
+        int count = 0;
+        while (x < xEnd && y < yEnd) {
+            int cx = columns[x];
+            int cy = columns[y];
+            if (cx < cy) {
+                x++;
+            } else if (cx > cy) {
+                y++;
+            } else {
+                int xRank = ranks[x++];
+                int yRank = ranks[y++];
+                s.xRanks[count] = xRank;
+                s.yRanks[count] = yRank;
+                s.xBits[xRank >>> 6] |= 1L << xRank;
+                s.yBits[yRank >>> 6] |= 1L << yRank;
+                count++;
+            }
+        }
+
+        double sumXYRankDiff2 = 0.0;
+        if (count > 1) {
+            prefixCounts(s.xBits, s.xPrefix, xWords);
+            prefixCounts(s.yBits, s.yPrefix, yWords);
+            for (int i = 0; i < count; i++) {
+                // Ranks among the co-rated items, from 1
+                int diff = rankAmong(s.xBits, s.xPrefix, s.xRanks[i]) - rankAmong(s.yBits, s.yPrefix, s.yRanks[i]);
+                sumXYRankDiff2 += (double) diff * diff;
+            }
+        }
+        Arrays.fill(s.xBits, 0, xWords, 0L);
+        Arrays.fill(s.yBits, 0, yWords, 0L);
+
+        if (count <= 1)
+            return Double.NaN;
+        // When ranks are unique we can use Spearman's formula
+        return 1.0 - 6.0 * sumXYRankDiff2 / (count * (count * count - 1));
+    }
+
+    private static void prefixCounts(long[] bits, int[] prefix, int words) {
+        int total = 0;
+        for (int w = 0; w < words; w++) {
+            prefix[w] = total;
+            total += Long.bitCount(bits[w]);
+        }
+    }
+
+    private static int rankAmong(long[] bits, int[] prefix, int rank) {
+        int word = rank >>> 6;
+        return prefix[word] + Long.bitCount(bits[word] & ((1L << rank) - 1)) + 1;
+    }
+
+    private static final class Scratch {
+        private int[] xRanks = new int[0];
+        private int[] yRanks = new int[0];
+        private long[] xBits = new long[0];
+        private long[] yBits = new long[0];
+        private int[] xPrefix = new int[0];
+        private int[] yPrefix = new int[0];
+
+        private void ensureCapacity(int length, int words) {
+            if (xRanks.length < length) {
+                xRanks = new int[length];
+                yRanks = new int[length];
+            }
+            if (xBits.length < words) {
+                xBits = new long[words];
+                yBits = new long[words];
+                xPrefix = new int[words];
+                yPrefix = new int[words];
+            }
+        }
+    }
+
+    @Override
+    UserSimilarity mahoutSimilarity() throws TasteException {
+        return new SpearmanCorrelationSimilarity(getDataModel());
+    }
+}
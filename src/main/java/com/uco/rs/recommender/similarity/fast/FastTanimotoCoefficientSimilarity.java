@@ -0,0 +1,40 @@
+package com.uco.rs.recommender.similarity.fast;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+/**
+ * Native counterpart of Mahout's {@code TanimotoCoefficientSimilarity}
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class FastTanimotoCoefficientSimilarity extends AbstractFastSimilarity {
+
+    public FastTanimotoCoefficientSimilarity(DataModel dataModel) throws TasteException {
+        super(dataModel);
+    }
+
+    @Override
+    public double rowSimilarity(PreferenceMatrix matrix, int row1, int row2) {
+        int xSize = matrix.rowLength(row1);
+        int ySize = matrix.rowLength(row2);
+        if (xSize == 0 && ySize == 0)
+            return Double.NaN;
+        if (xSize == 0 || ySize == 0)
+            return 0.0;
+
+        int intersectionSize = intersectionSize(matrix, row1, row2);
+        if (intersectionSize == 0)
+            return Double.NaN;
+
+        int unionSize = xSize + ySize - intersectionSize;
+        return (double) intersectionSize / (double) unionSize;
+    }
+
+    @Override
+    UserSimilarity mahoutSimilarity() throws TasteException {
+        return new TanimotoCoefficientSimilarity(getDataModel());
+    }
+}
@@ -0,0 +1,40 @@
+package com.uco.rs.recommender.similarity.fast;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.common.Weighting;
+import org.apache.mahout.cf.taste.impl.similarity.UncenteredCosineSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+/**
+ * Native counterpart of Mahout's {@code UncenteredCosineSimilarity}
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class FastUncenteredCosineSimilarity extends AbstractFastMergeSimilarity {
+
+    public FastUncenteredCosineSimilarity(DataModel dataModel) throws TasteException {
+        this(dataModel, Weighting.UNWEIGHTED);
+    }
+
+    public FastUncenteredCosineSimilarity(DataModel dataModel, Weighting weighting) throws TasteException {
+        super(dataModel, weighting, false);
+        Preconditions.checkArgument(dataModel.hasPreferenceValues(), "DataModel doesn't have preference values");
+    }
+
+    @Override
+    double computeResult(int n, double sumXY, double sumX2, double sumY2, double sumXYdiff2) {
+        if (n == 0)
+            return Double.NaN;
+        double denominator = Math.sqrt(sumX2) * Math.sqrt(sumY2);
+        if (denominator == 0.0)
+            return Double.NaN;
+        return sumXY / denominator;
+    }
+
+    @Override
+    UserSimilarity mahoutSimilarity() throws TasteException {
+        return new UncenteredCosineSimilarity(getDataModel(), getWeighting());
+    }
+}
@@ -0,0 +1,373 @@
+package com.uco.rs.recommender.similarity.fast;
+
+import com.uco.rs.util.Parallel;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Compact snapshot of a {@link DataModel} in compressed row form. Each user is a row whose item indices and
+ * preference values are stored contiguously and ordered by item, so similarity kernels can merge two rows over
+ * primitive arrays instead of going through {@link PreferenceArray} getters.
+ *
+ * Item indices follow the order of the item IDs, so comparing indices is the same as comparing IDs.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public final class PreferenceMatrix {
+
+    //////////////////////////////////////////////
+    // -------------------------------- Variables
+    /////////////////////////////////////////////
+    // One snapshot per data model, shared by all the similarities built over it
+    private static final Map<DataModel, PreferenceMatrix> snapshots = new WeakHashMap<>();
+
+    private final long[] userIDs;
+    private final long[] itemIDs;
+    // Row i spans positions [rowStart[i], rowStart[i + 1]) of columns and values
+    private final int[] rowStart;
+    private final int[] columns;
+    private final float[] values;
+    // Position of each preference in its row ordered by value, computed on first use
+    private volatile int[] valueRanks;
+    // One bit per item and row, computed on first use
+    private volatile long[] bits;
+    // Item-major view centered on the user means, computed on first use
+    private volatile CenteredItemMatrix centeredByItem;
+
+    //////////////////////////////////////////////
+    // ------------------------------ Constructor
+    /////////////////////////////////////////////
+    private PreferenceMatrix(DataModel model) throws TasteException {
+        userIDs = toSortedArray(model.getUserIDs(), model.getNumUsers());
+        itemIDs = toSortedArray(model.getItemIDs(), model.getNumItems());
+
+        PreferenceArray[] rows = new PreferenceArray[userIDs.length];
+        rowStart = new int[userIDs.length + 1];
+        for (int i = 0; i < userIDs.length; i++) {
+            rows[i] = model.getPreferencesFromUser(userIDs[i]);
+            rowStart[i + 1] = rowStart[i] + rows[i].length();
+        }
+
+        columns = new int[rowStart[userIDs.length]];
+        values = new float[columns.length];
+        for (int i = 0; i < rows.length; i++) {
+            PreferenceArray prefs = rows[i];
+            int offset = rowStart[i];
+            for (int j = 0; j < prefs.length(); j++) {
+                int column = Arrays.binarySearch(itemIDs, prefs.getItemID(j));
+                if (column < 0)
+                    throw new IllegalStateException("Item " + prefs.getItemID(j) + " is not listed in the model");
+                columns[offset + j] = column;
+                values[offset + j] = prefs.getValue(j);
+            }
+            sortRow(offset, rowStart[i + 1]);
+        }
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+
+    /**
+     * Snapshot of the given model, built on first request and shared afterwards
+     *
+     * @param model DataModel
+     * @return compact view of the model
+     */
+    public static PreferenceMatrix of(DataModel model) throws TasteException {
+        synchronized (snapshots) {
+            PreferenceMatrix matrix = snapshots.get(model);
+            if (matrix != null)
+                return matrix;
+        }
+        PreferenceMatrix matrix = new PreferenceMatrix(model);
+        synchronized (snapshots) {
+            PreferenceMatrix previous = snapshots.get(model);
+            if (previous != null)
+                return previous;
+            snapshots.put(model, matrix);
+        }
+        return matrix;
+    }
+
+    /**
+     * Discard the snapshot of a model whose content has changed
+     *
+     * @param model DataModel
+     */
+    public static void invalidate(DataModel model) {
+        synchronized (snapshots) {
+            snapshots.remove(model);
+        }
+    }
+
+    /**
+     * Rows whose preferences differ between two snapshots of the same model. Only the rows are compared, so it is
+     * linear in the number of preferences.
+     *
+     * @param before previous snapshot
+     * @param after  current snapshot
+     * @return changed rows in increasing order, or null if the users or the items are not the same, in which case any
+     * similarity may have changed
+     */
+    public static int[] changedRows(PreferenceMatrix before, PreferenceMatrix after) {
+        if (before == after)
+            return new int[0];
+        if (!Arrays.equals(before.userIDs, after.userIDs) || !Arrays.equals(before.itemIDs, after.itemIDs))
+            return null;
+
+        int[] changed = new int[after.numUsers()];
+        int size = 0;
+        for (int row = 0; row < after.numUsers(); row++) {
+            if (!sameRow(before, after, row))
+                changed[size++] = row;
+        }
+        return Arrays.copyOf(changed, size);
+    }
+
+    private static boolean sameRow(PreferenceMatrix before, PreferenceMatrix after, int row) {
+        int length = before.rowLength(row);
+        if (length != after.rowLength(row))
+            return false;
+        int p = before.rowStart[row];
+        int q = after.rowStart[row];
+        for (int k = 0; k < length; k++, p++, q++) {
+            if (before.columns[p] != after.columns[q]
+                    || Float.floatToIntBits(before.values[p]) != Float.floatToIntBits(after.values[q]))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Row of a user in the matrix
+     *
+     * @param userID ID of the user
+     * @return index of the row
+     * @throws NoSuchUserException if the user is not in the model
+     */
+    public int row(long userID) throws NoSuchUserException {
+        int row = Arrays.binarySearch(userIDs, userID);
+        if (row < 0)
+            throw new NoSuchUserException(userID);
+        return row;
+    }
+
+    /**
+     * Row of a user in the matrix, or a negative value if the user is not in the model
+     */
+    public int rowOrNegative(long userID) {
+        return Arrays.binarySearch(userIDs, userID);
+    }
+
+    /**
+     * Column of an item in the matrix, or a negative value if the item is not in the model
+     */
+    public int columnOrNegative(long itemID) {
+        return Arrays.binarySearch(itemIDs, itemID);
+    }
+
+    public long userID(int row) {
+        return userIDs[row];
+    }
+
+    public long itemID(int column) {
+        return itemIDs[column];
+    }
+
+    public int numUsers() {
+        return userIDs.length;
+    }
+
+    public int numItems() {
+        return itemIDs.length;
+    }
+
+    public int numPreferences() {
+        return columns.length;
+    }
+
+    /**
+     * First position of a row in {@link #columns()} and {@link #values()}
+     */
+    public int rowStart(int row) {
+        return rowStart[row];
+    }
+
+    /**
+     * Position following the last one of a row in {@link #columns()} and {@link #values()}
+     */
+    public int rowEnd(int row) {
+        return rowStart[row + 1];
+    }
+
+    public int rowLength(int row) {
+        return rowStart[row + 1] - rowStart[row];
+    }
+
+    /**
+     * Item index of every preference, grouped by row. Shared array that must not be modified.
+     */
+    public int[] columns() {
+        return columns;
+    }
+
+    /**
+     * Value of every preference, grouped by row. Shared array that must not be modified.
+     */
+    public float[] values() {
+        return values;
+    }
+
+    /**
+     * Rank-transformed view of the matrix: for every preference, its position (from 0) in its row once the row is
+     * ordered by value with the same comb sort Mahout applies to preference arrays, so ties keep Mahout's order.
+     * Computed once per snapshot, in parallel by rows. Shared array that must not be modified.
+     */
+    public int[] valueRanks() {
+        int[] ranks = valueRanks;
+        if (ranks == null) {
+            synchronized (this) {
+                ranks = valueRanks;
+                if (ranks == null) {
+                    ranks = computeValueRanks();
+                    valueRanks = ranks;
+                }
+            }
+        }
+        return ranks;
+    }
+
+    /**
+     * Whether the bitset view takes no more memory than the compressed rows, which is also when intersecting two of
+     * its rows word by word is not slower than merging them
+     */
+    public boolean hasCompactBits() {
+        return (long) wordsPerRow() * numUsers() <= numPreferences();
+    }
+
+    /**
+     * Words per row of {@link #bits()}
+     */
+    public int wordsPerRow() {
+        return (numItems() + 63) >>> 6;
+    }
+
+    /**
+     * Bitset view of the matrix: row i spans words [i * wordsPerRow(), (i + 1) * wordsPerRow()), and bit c of a row
+     * is set if the user has a preference for item c. Computed once per snapshot. Shared array that must not be
+     * modified.
+     */
+    public long[] bits() {
+        long[] b = bits;
+        if (b == null) {
+            synchronized (this) {
+                b = bits;
+                if (b == null) {
+                    int words = wordsPerRow();
+                    b = new long[Math.multiplyExact(words, numUsers())];
+                    for (int row = 0; row < numUsers(); row++) {
+                        for (int p = rowStart[row]; p < rowStart[row + 1]; p++)
+                            b[row * words + (columns[p] >>> 6)] |= 1L << columns[p];
+                    }
+                    bits = b;
+                }
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Item-major view of the matrix with every value centered on the mean of its user. Computed once per snapshot.
+     */
+    public CenteredItemMatrix centeredByItem() {
+        CenteredItemMatrix view = centeredByItem;
+        if (view == null) {
+            synchronized (this) {
+                view = centeredByItem;
+                if (view == null) {
+                    view = new CenteredItemMatrix(this);
+                    centeredByItem = view;
+                }
+            }
+        }
+        return view;
+    }
+
+    private int[] computeValueRanks() {
+        int[] ranks = new int[columns.length];
+        Parallel.forRange(numUsers(), row -> {
+            int start = rowStart[row];
+            int length = rowLength(row);
+            int[] order = new int[length];
+            for (int i = 0; i < length; i++)
+                order[i] = i;
+            combSort(values, start, order, length);
+            for (int i = 0; i < length; i++)
+                ranks[start + order[i]] = i;
+        });
+        return ranks;
+    }
+
+    /**
+     * Comb sort by value used by Mahout's preference arrays, applied to the positions of a row
+     */
+    private static void combSort(float[] values, int start, int[] order, int length) {
+        int gap = length;
+        boolean swapped = false;
+        while (gap > 1 || swapped) {
+            if (gap > 1)
+                gap = (int) (gap / 1.247330950103979);
+            swapped = false;
+            int max = length - gap;
+            for (int i = 0; i < max; i++) {
+                int other = i + gap;
+                if (values[start + order[other]] < values[start + order[i]]) {
+                    int tmp = order[i];
+                    order[i] = order[other];
+                    order[other] = tmp;
+                    swapped = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Order the preferences of a row by item. Rows normally come already ordered from the model, so an insertion
+     * sort is enough.
+     */
+    private void sortRow(int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            int column = columns[i];
+            float value = values[i];
+            int j = i - 1;
+            while (j >= from && columns[j] > column) {
+                columns[j + 1] = columns[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            columns[j + 1] = column;
+            values[j + 1] = value;
+        }
+    }
+
+    private static long[] toSortedArray(LongPrimitiveIterator it, int size) {
+        long[] ids = new long[size];
+        int n = 0;
+        while (it.hasNext()) {
+            if (n == ids.length)
+                ids = Arrays.copyOf(ids, 2 * n + 1);
+            ids[n++] = it.nextLong();
+        }
+        ids = n == ids.length ? ids : Arrays.copyOf(ids, n);
+        Arrays.sort(ids);
+        return ids;
+    }
+}
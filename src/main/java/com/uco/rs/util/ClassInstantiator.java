@@ -8,6 +8,8 @@ import org.apache.mahout.cf.taste.recommender.Recommender;
 import org.apache.mahout.cf.taste.similarity.UserSimilarity;
 import com.uco.rs.evaluator.Evaluator;
 import com.uco.rs.recommender.BaseRS;
+import com.uco.rs.recommender.similarity.fast.AbstractFastSimilarity;
+import com.uco.rs.recommender.similarity.fast.FastSimilarities;
 
 import java.lang.reflect.InvocationTargetException;
 
@@ -45,19 +47,42 @@ public class ClassInstantiator {
         return instance;
     }
 
-    public static UserSimilarity instantiateUserSimilarity(String className, DataModel dataModel) {
-        Class<? extends UserSimilarity> similarity = null;
+    /**
+     * Instantiate a UserSimilarity, switching co-rated similarities to their dense backend when the density of the
+     * data model reaches the given threshold
+     */
+    public static UserSimilarity instantiateUserSimilarity(String className, DataModel dataModel,
+                                                           double denseThreshold) {
+        UserSimilarity instance = instantiateUserSimilarity(className, dataModel);
         try {
-            similarity = Class.forName(className).asSubclass(UserSimilarity.class);
-        } catch (ClassNotFoundException e) {
+            instance = FastSimilarities.denseIfWorthwhile(instance, denseThreshold);
+        } catch (TasteException e) {
             e.printStackTrace();
         }
+        return instance;
+    }
+
+    /**
+     * Instantiate a UserSimilarity. Mahout similarities with a native implementation are replaced by it, the rest
+     * are wrapped in a cache.
+     */
+    public static UserSimilarity instantiateUserSimilarity(String className, DataModel dataModel) {
+        Class<? extends UserSimilarity> similarity = FastSimilarities.nativeFor(className);
+        if (similarity == null) {
+            try {
+                similarity = Class.forName(className).asSubclass(UserSimilarity.class);
+            } catch (ClassNotFoundException e) {
+                e.printStackTrace();
+            }
+        }
 
         UserSimilarity instance = null;
         try {
             assert similarity != null;
-            instance = new CachingUserSimilarity(similarity.getDeclaredConstructor(DataModel.class)
-                    .newInstance(dataModel), dataModel);
+            instance = similarity.getDeclaredConstructor(DataModel.class).newInstance(dataModel);
+            // Native similarities are cheaper to recompute than to look up in the cache
+            if (!(instance instanceof AbstractFastSimilarity))
+                instance = new CachingUserSimilarity(instance, dataModel);
         } catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException | TasteException e) {
             e.printStackTrace();
         }
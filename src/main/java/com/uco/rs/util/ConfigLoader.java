@@ -17,11 +17,6 @@ import java.io.File;
 
 public class ConfigLoader {
 
-    //////////////////////////////////////////////
-    // -------------------------------- Variables
-    /////////////////////////////////////////////
-    private static Configuration configuration;
-
     //////////////////////////////////////////////
     // ----------------------------------- Methods
     /////////////////////////////////////////////
@@ -38,6 +33,7 @@ public class ConfigLoader {
         FileBasedConfigurationBuilder<XMLConfiguration> builder = new FileBasedConfigurationBuilder<>(XMLConfiguration.class);
         builder.configure(px.setFile(path));
 
+        Configuration configuration = null;
         try {
             configuration = builder.getConfiguration();
         } catch (ConfigurationException e) {
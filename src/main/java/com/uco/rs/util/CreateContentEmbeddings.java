@@ -0,0 +1,46 @@
+package com.uco.rs.util;
+
+import com.google.common.base.Preconditions;
+import com.uco.rs.recommender.similarity.ContentEmbeddings;
+import com.uco.rs.recommender.similarity.DocumentaryIndex;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Create in a previous step the dense embeddings of the courses' contents from the documentary database, so the CBF
+ * recommender can compare contents with a fixed-width dot product. The file is written in the "configuration"
+ * directory and is used by setting its name in the contentEmbeddings property of the similarity.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public class CreateContentEmbeddings {
+
+    public static void main(String[] args) {
+        Preconditions.checkArgument(args.length == 3, "Use: <output file> <dimensions> <lsa | random>");
+
+        File database = PathLoader.getConfigPath("documentaryDB");
+        File output = PathLoader.getConfigPath(args[0]);
+        int dimensions = Integer.parseInt(args[1]);
+
+        long start = System.currentTimeMillis();
+        try (DocumentaryIndex index = new DocumentaryIndex(database)) {
+            ContentEmbeddings embeddings = null;
+            if (args[2].equals("lsa"))
+                embeddings = ContentEmbeddings.lsa(index, dimensions);
+            else if (args[2].equals("random"))
+                embeddings = ContentEmbeddings.randomProjection(index, dimensions, 123456L);
+            else {
+                System.err.println("Unknown embedding method " + args[2]);
+                System.exit(-1);
+            }
+            embeddings.write(output);
+            System.out.println("Embeddings of " + embeddings.numSubjects() + " subjects in " + dimensions
+                    + " dimensions written to " + output.getAbsolutePath() + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+}
@@ -8,8 +8,20 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.uco.rs.recommender.similarity.DocumentaryIndex;
 import org.apache.commons.configuration2.Configuration;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.CharArraySet;
@@ -20,6 +32,7 @@ import org.apache.lucene.document.FieldType;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.mahout.common.IOUtils;
@@ -28,12 +41,16 @@ import org.apache.mahout.common.IOUtils;
  * Create in a previous step the documentary database that store the terms of the courses' contents.
  * This class will create a directory "configuration/documentaryDB", necessary to execute the CBF recommender based on
  * contents.
+ * Subjects are streamed from the database to a bounded queue and indexed by several threads sharing the same writer
+ * (one per processor unless a second argument gives the number of threads).
+ * The latest value of the last-modified column of the subjects table (a third argument, by default the one of
+ * {@link UpdateDocumentaryDB}) is kept in the commit, so the next update only indexes the subjects modified after it.
  * @author Aurora Esteban Toscano
  */
 public class CreateDocumentaryDB {
 
 	// Indexed, tokenized, stored type of indexing
-	private static final FieldType TYPE_STORED = new FieldType();
+	static final FieldType TYPE_STORED = new FieldType();
 	static {
 		TYPE_STORED.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
 		TYPE_STORED.setTokenized(true);
@@ -43,8 +60,14 @@ public class CreateDocumentaryDB {
 		TYPE_STORED.freeze();
 	}
 
+	// Subjects read from the database waiting to be indexed, and the mark of the end of the table
+	private static final int QUEUE_SIZE = 1024;
+	private static final String[] END = new String[0];
+
 	public static void main(String[] args) {
-		
+		int nThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		String column = args.length > 2 ? args[2] : UpdateDocumentaryDB.DEFAULT_COLUMN;
+
 		Analyzer analyzer = createAnalyzer();
 		
 		// Load data model manager
@@ -60,44 +83,142 @@ public class CreateDocumentaryDB {
 			e1.printStackTrace();
 			System.exit(-1);
 		}
-		
+
+		// Large RAM buffer and few, big segments, since the whole database is indexed at once and merged at the end
+		TieredMergePolicy mergePolicy = new TieredMergePolicy();
+		mergePolicy.setSegmentsPerTier(20);
+		mergePolicy.setMaxMergeAtOnce(20);
+		mergePolicy.setNoCFSRatio(0.0);
 		IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
+		iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+		iwc.setRAMBufferSizeMB(256);
+		iwc.setMergePolicy(mergePolicy);
+		iwc.setUseCompoundFile(false);
 		IndexWriter writer = null;
 		try {
 			writer = new IndexWriter(dbStore, iwc);
 		} catch (IOException e1) {
 			e1.printStackTrace();
+			System.exit(-1);
 		}
-		assert writer != null;
+
+		// Indexing threads, all sharing the writer
+		BlockingQueue<String[]> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+		AtomicLong indexed = new AtomicLong();
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		List<Future<?>> indexers = new ArrayList<>(nThreads);
+		for (int i = 0; i < nThreads; i++)
+			indexers.add(executor.submit(new Indexer(writer, queue, indexed)));
+
+		long start = System.currentTimeMillis();
 		Connection connection = null;
 		Statement st = null;
 		ResultSet rs = null;
 		try {
 			connection = mm.getDataSource().getConnection();
-			st = connection.createStatement();
+			// Read before the table is streamed, so subjects modified while indexing are indexed again by the next update
+			Timestamp lastModified = lastModified(connection, column);
+
+			// Stream the table instead of loading it in memory
+			st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			if (connection.getMetaData().getDatabaseProductName().equals("MySQL"))
+				st.setFetchSize(Integer.MIN_VALUE);
+			else
+				st.setFetchSize(QUEUE_SIZE);
 			rs = st.executeQuery("SELECT id, content, name FROM uco.uco_subject");
 
-			while (rs.next()) {
-				System.out.println("Indexing content of " + rs.getString(3) + " (id = " + rs.getString(1) + ")");
+			while (rs.next())
+				queue.put(new String[]{rs.getString(1), rs.getString(2)});
+			for (int i = 0; i < nThreads; i++)
+				queue.put(END);
 
-				// Index content
-				Document doc = new Document();
-				Field field1 = new Field("Content", rs.getString(2), TYPE_STORED);
-				Field field2 = new Field("Id", rs.getString(1), TYPE_STORED);
-				doc.add(field1);
-				doc.add(field2);
-				writer.addDocument(doc);
-			}
+			for (Future<?> indexer : indexers)
+				indexer.get();
+			long indexing = System.currentTimeMillis() - start;
+
+			writer.forceMerge(1);
+			if (lastModified != null)
+				writer.setLiveCommitData(Collections.singletonMap(DocumentaryIndex.LAST_MODIFIED_KEY,
+						String.valueOf(lastModified.getTime())).entrySet());
 			writer.close();
-		} catch (SQLException | IOException e) {
+			long total = System.currentTimeMillis() - start;
+			System.out.println("Indexed " + indexed.get() + " subjects with " + nThreads + " threads in " + indexing
+					+ " ms (" + indexed.get() * 1000 / Math.max(1, indexing) + " docs/sec), " + total
+					+ " ms including the final merge");
+		} catch (SQLException | IOException | InterruptedException | ExecutionException e) {
 			e.printStackTrace();
 			System.exit(-1);
 		} finally {
 			IOUtils.quietClose(rs, st, connection);
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Latest modification of the subjects, or null if there is none or the table has no such column, and then the
+	 * next update indexes every subject again
+	 */
+	private static Timestamp lastModified(Connection connection, String column) {
+		Statement st = null;
+		ResultSet rs = null;
+		try {
+			// The column is written in the query, so only a column of the table is accepted
+			String name = UpdateDocumentaryDB.subjectColumn(connection, column);
+			if (name == null) {
+				System.err.println("Last modification of the subjects unknown: the table has no column " + column);
+				return null;
+			}
+			column = name;
+			st = connection.createStatement();
+			rs = st.executeQuery("SELECT MAX(" + column + ") FROM uco.uco_subject");
+			return rs.next() ? rs.getTimestamp(1) : null;
+		} catch (SQLException e) {
+			System.err.println("Last modification of the subjects unknown: " + e.getMessage());
+			return null;
+		} finally {
+			IOUtils.quietClose(rs);
+			IOUtils.quietClose(st);
+		}
+	}
+
+	/**
+	 * Take subjects from the queue and add them to the index until the end mark
+	 */
+	private static class Indexer implements Callable<Void> {
+		private final IndexWriter writer;
+		private final BlockingQueue<String[]> queue;
+		private final AtomicLong indexed;
+
+		private Indexer(IndexWriter writer, BlockingQueue<String[]> queue, AtomicLong indexed) {
+			this.writer = writer;
+			this.queue = queue;
+			this.indexed = indexed;
+		}
+
+		@Override
+		public Void call() throws InterruptedException {
+			String[] subject;
+			while ((subject = queue.take()) != END) {
+				// Index content
+				Document doc = new Document();
+				Field field1 = new Field("Content", subject[1], TYPE_STORED);
+				Field field2 = new Field("Id", subject[0], TYPE_STORED);
+				doc.add(field1);
+				doc.add(field2);
+				try {
+					writer.addDocument(doc);
+				} catch (IOException e) {
+					// Stop everything, or the reader would wait forever for room in the queue
+					e.printStackTrace();
+					System.exit(-1);
+				}
+				indexed.incrementAndGet();
+			}
+			return null;
 		}
 	}
 
-	private static Analyzer createAnalyzer() {
+	static Analyzer createAnalyzer() {
 		// Configure stop words
 		CharArraySet analyzerConfig = SpanishAnalyzer.getDefaultStopSet();
 		File stopWordsFile = PathLoader.getConfigPath("stopWords.txt");
@@ -0,0 +1,54 @@
+package com.uco.rs.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
+
+/**
+ * Utility class for running loops over indices in parallel.
+ *
+ * @author Aurora Esteban Toscano
+ */
+public class Parallel {
+
+    /**
+     * Apply an action to every index in [0, n), splitting the range in contiguous chunks among the available
+     * processors. Returns when all the indices have been processed.
+     * The chunks run in the common fork-join pool, shared by every call, along with the calling thread. A call made
+     * from a chunk of another one, such as a row computed while a matrix is built, helps running its own chunks
+     * instead of waiting for a free thread.
+     *
+     * @param n      number of indices
+     * @param action action to apply to each index
+     */
+    public static void forRange(int n, IntConsumer action) {
+        int nThreads = Math.min(Math.min(Runtime.getRuntime().availableProcessors(),
+                ForkJoinPool.getCommonPoolParallelism() + 1), n);
+        if (nThreads <= 1) {
+            for (int i = 0; i < n; i++)
+                action.accept(i);
+            return;
+        }
+
+        // More chunks than threads so that uneven rows are balanced
+        int nChunks = Math.min(n, nThreads * 4);
+        List<ForkJoinTask<?>> chunks = new ArrayList<>(nChunks);
+        for (int c = 0; c < nChunks; c++) {
+            int from = (int) ((long) n * c / nChunks);
+            int to = (int) ((long) n * (c + 1) / nChunks);
+            chunks.add(ForkJoinTask.adapt(() -> {
+                for (int i = from; i < to; i++)
+                    action.accept(i);
+            }));
+        }
+
+        try {
+            ForkJoinTask.invokeAll(chunks);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+}
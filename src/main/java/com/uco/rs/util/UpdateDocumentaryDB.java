@@ -0,0 +1,180 @@
+package com.uco.rs.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.uco.rs.recommender.similarity.DocumentaryIndex;
+import org.apache.commons.configuration2.Configuration;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.mahout.common.IOUtils;
+
+/**
+ * Update the documentary database created by {@link CreateDocumentaryDB} with the subjects whose contents changed
+ * since the previous update, according to a last-modified column of the subjects table, and without the subjects
+ * removed from it. Subjects whose last modification is unknown (NULL) are left as they are. Each update is one commit
+ * whose user data keeps the last modification seen and the IDs of the changed subjects, so running recommenders can
+ * refresh their reader and recompute only those subjects.
+ * @author Aurora Esteban Toscano
+ */
+public class UpdateDocumentaryDB {
+
+	static final String DEFAULT_COLUMN = "last_modified";
+
+	public static void main(String[] args) {
+		Preconditions.checkArgument(args.length == 1 || args.length == 2,
+				"Use: <DB configuration.xml> [last modified column]");
+		String column = args.length > 1 ? args[1] : DEFAULT_COLUMN;
+
+		// Load data model manager
+		Configuration configDM = ConfigLoader.XMLFile(new File(args[0]));
+		ModelManage mm = new ModelManage(configDM);
+
+		Directory dbStore = null;
+		IndexWriter writer = null;
+		long lastModified = 0L;
+		Set<String> indexed = new HashSet<>();
+		try {
+			dbStore = FSDirectory.open(Paths.get("configuration/documentaryDB"));
+			// Modifications already indexed
+			if (DirectoryReader.indexExists(dbStore)) {
+				String last = SegmentInfos.readLatestCommit(dbStore).getUserData()
+						.get(DocumentaryIndex.LAST_MODIFIED_KEY);
+				if (last != null)
+					lastModified = Long.parseLong(last);
+				indexed = indexedSubjects(dbStore);
+			}
+			IndexWriterConfig iwc = new IndexWriterConfig(CreateDocumentaryDB.createAnalyzer());
+			iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+			writer = new IndexWriter(dbStore, iwc);
+		} catch (IOException e1) {
+			e1.printStackTrace();
+			System.exit(-1);
+		}
+
+		Connection connection = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		try {
+			connection = mm.getDataSource().getConnection();
+			// The column is written in the query, so only a column of the table is accepted
+			String name = subjectColumn(connection, column);
+			if (name == null) {
+				System.err.println("The subjects table has no column " + column);
+				System.exit(-1);
+			}
+			column = name;
+			st = connection.prepareStatement("SELECT id, content, " + column + " FROM uco.uco_subject WHERE "
+					+ column + " > ?");
+			Timestamp since = new Timestamp(lastModified);
+			st.setTimestamp(1, since);
+			rs = st.executeQuery();
+
+			StringBuilder changed = new StringBuilder();
+			int nChanged = 0;
+			while (rs.next()) {
+				// Replace the document of the subject, or add it if it is new
+				Document doc = new Document();
+				doc.add(new Field("Content", rs.getString(2), CreateDocumentaryDB.TYPE_STORED));
+				doc.add(new Field("Id", rs.getString(1), CreateDocumentaryDB.TYPE_STORED));
+				writer.updateDocument(new Term("Id", rs.getString(1)), doc);
+
+				Timestamp modified = rs.getTimestamp(3);
+				if (modified != null)
+					lastModified = Math.max(lastModified, modified.getTime());
+				if (nChanged++ > 0)
+					changed.append(',');
+				changed.append(rs.getString(1));
+			}
+			IOUtils.quietClose(rs);
+			IOUtils.quietClose(st);
+
+			// Subjects no longer in the table
+			st = connection.prepareStatement("SELECT id FROM uco.uco_subject");
+			rs = st.executeQuery();
+			while (rs.next())
+				indexed.remove(rs.getString(1));
+			int nDeleted = 0;
+			for (String id : indexed) {
+				writer.deleteDocuments(new Term("Id", id));
+				if (nChanged++ > 0)
+					changed.append(',');
+				changed.append(id);
+				nDeleted++;
+			}
+
+			if (nChanged > 0) {
+				Map<String, String> userData = new HashMap<>();
+				userData.put(DocumentaryIndex.LAST_MODIFIED_KEY, String.valueOf(lastModified));
+				userData.put(DocumentaryIndex.CHANGED_KEY, changed.toString());
+				writer.setLiveCommitData(userData.entrySet());
+				writer.commit();
+			}
+			writer.close();
+			System.out.println("Updated " + (nChanged - nDeleted) + " subjects modified after " + since + ", deleted "
+					+ nDeleted + " subjects");
+		} catch (SQLException | IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		} finally {
+			IOUtils.quietClose(rs, st, connection);
+		}
+	}
+
+	/**
+	 * Column of the subjects table with the given name, as the database names it, so it can be written in a query
+	 *
+	 * @return the column, or null if the name is not a plain identifier or the table has no such column
+	 */
+	static String subjectColumn(Connection connection, String column) throws SQLException {
+		if (!column.matches("[A-Za-z_][A-Za-z0-9_]*"))
+			return null;
+		try (ResultSet columns = connection.getMetaData().getColumns(null, null, "uco_subject", null)) {
+			while (columns.next()) {
+				String name = columns.getString("COLUMN_NAME");
+				if (name.equalsIgnoreCase(column))
+					return name;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * IDs of the subjects in the last commit of the documentary database
+	 */
+	private static Set<String> indexedSubjects(Directory dbStore) throws IOException {
+		Set<String> ids = new HashSet<>();
+		try (DirectoryReader reader = DirectoryReader.open(dbStore)) {
+			for (LeafReaderContext leaf : reader.leaves()) {
+				LeafReader leafReader = leaf.reader();
+				Bits liveDocs = leafReader.getLiveDocs();
+				for (int doc = 0; doc < leafReader.maxDoc(); doc++) {
+					if (liveDocs == null || liveDocs.get(doc))
+						ids.add(leafReader.document(doc).get("Id"));
+				}
+			}
+		}
+		return ids;
+	}
+}
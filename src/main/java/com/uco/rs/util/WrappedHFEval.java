@@ -14,7 +14,7 @@ import java.util.Map;
 public class WrappedHFEval {
 
     private Configuration recoConfig;
-    private static ModelManage mm;
+    private ModelManage mm;
     private Evaluator evaluator;
 
     public WrappedHFEval() {
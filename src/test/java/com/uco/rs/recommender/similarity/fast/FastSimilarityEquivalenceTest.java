@@ -0,0 +1,200 @@
+package com.uco.rs.recommender.similarity.fast;
+
+import junit.framework.TestCase;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.common.Weighting;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericPreference;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.impl.similarity.AveragingPreferenceInferrer;
+import org.apache.mahout.cf.taste.impl.similarity.CityBlockSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.EuclideanDistanceSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.LogLikelihoodSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.SpearmanCorrelationSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.UncenteredCosineSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Every native similarity must give the same values as the Mahout class it replaces, for every pair of users
+ *
+ * @author Aurora Esteban Toscano
+ */
+public class FastSimilarityEquivalenceTest extends TestCase {
+
+    private static final double EPSILON = 1e-9;
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Fixtures
+    /////////////////////////////////////////////
+
+    /**
+     * Small model with the corner cases: tied values, constant users, a single co-rated item and users that share no
+     * item with some others
+     */
+    private static DataModel cornerCases() {
+        FastByIDMap<PreferenceArray> data = new FastByIDMap<>();
+        add(data, 1, new long[]{1, 2, 3, 4, 5}, new float[]{5, 3, 3, 1, 4});
+        add(data, 2, new long[]{1, 2, 3, 4, 5}, new float[]{4, 4, 4, 2, 5});
+        // Constant values, so the centered sums are 0
+        add(data, 3, new long[]{1, 3, 5}, new float[]{3, 3, 3});
+        // Shares only item 5 with the first users
+        add(data, 4, new long[]{5, 6, 7}, new float[]{2, 5, 1});
+        // Shares no item with the first users
+        add(data, 5, new long[]{8, 9}, new float[]{1, 5});
+        add(data, 6, new long[]{8, 9, 10}, new float[]{2, 2, 4});
+        add(data, 7, new long[]{2}, new float[]{3});
+        add(data, 8, new long[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, new float[]{1, 2, 3, 4, 5, 5, 4, 3, 2, 1});
+        return new GenericDataModel(data);
+    }
+
+    /**
+     * Random model with integer values, so that there are many ties
+     */
+    private static DataModel random(long seed) {
+        Random random = new Random(seed);
+        FastByIDMap<PreferenceArray> data = new FastByIDMap<>();
+        for (long user = 1; user <= 40; user++) {
+            List<Preference> preferences = new ArrayList<>();
+            for (long item = 1; item <= 30; item++)
+                if (random.nextDouble() < 0.25)
+                    preferences.add(new GenericPreference(user, item, 1 + random.nextInt(5)));
+            if (preferences.isEmpty())
+                preferences.add(new GenericPreference(user, 1 + random.nextInt(30), 3));
+            data.put(user, new GenericUserPreferenceArray(preferences));
+        }
+        return new GenericDataModel(data);
+    }
+
+    private static void add(FastByIDMap<PreferenceArray> data, long user, long[] items, float[] values) {
+        List<Preference> preferences = new ArrayList<>();
+        for (int i = 0; i < items.length; i++)
+            preferences.add(new GenericPreference(user, items[i], values[i]));
+        data.put(user, new GenericUserPreferenceArray(preferences));
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Tests
+    /////////////////////////////////////////////
+
+    public void testPearson() throws TasteException {
+        for (DataModel model : models()) {
+            assertSame(new PearsonCorrelationSimilarity(model), new FastPearsonCorrelationSimilarity(model), model);
+            assertSame(new PearsonCorrelationSimilarity(model, Weighting.WEIGHTED),
+                    new FastPearsonCorrelationSimilarity(model, Weighting.WEIGHTED), model);
+        }
+    }
+
+    public void testEuclidean() throws TasteException {
+        for (DataModel model : models()) {
+            assertSame(new EuclideanDistanceSimilarity(model), new FastEuclideanDistanceSimilarity(model), model);
+            assertSame(new EuclideanDistanceSimilarity(model, Weighting.WEIGHTED),
+                    new FastEuclideanDistanceSimilarity(model, Weighting.WEIGHTED), model);
+        }
+    }
+
+    public void testUncenteredCosine() throws TasteException {
+        for (DataModel model : models()) {
+            assertSame(new UncenteredCosineSimilarity(model), new FastUncenteredCosineSimilarity(model), model);
+            assertSame(new UncenteredCosineSimilarity(model, Weighting.WEIGHTED),
+                    new FastUncenteredCosineSimilarity(model, Weighting.WEIGHTED), model);
+        }
+    }
+
+    public void testDenseBackend() throws TasteException {
+        for (DataModel model : models()) {
+            assertSame(new PearsonCorrelationSimilarity(model, Weighting.WEIGHTED), FastSimilarities.denseIfWorthwhile(
+                    new FastPearsonCorrelationSimilarity(model, Weighting.WEIGHTED), 0.0), model);
+            assertSame(new EuclideanDistanceSimilarity(model), FastSimilarities.denseIfWorthwhile(
+                    new FastEuclideanDistanceSimilarity(model), 0.0), model);
+            assertSame(new UncenteredCosineSimilarity(model), FastSimilarities.denseIfWorthwhile(
+                    new FastUncenteredCosineSimilarity(model), 0.0), model);
+        }
+    }
+
+    public void testSpearman() throws TasteException {
+        for (DataModel model : models())
+            assertSame(new SpearmanCorrelationSimilarity(model), new FastSpearmanCorrelationSimilarity(model), model);
+    }
+
+    public void testSetBased() throws TasteException {
+        boolean bitsets = FastSimilarities.usesBitsets();
+        try {
+            for (boolean enabled : new boolean[]{false, true}) {
+                FastSimilarities.useBitsets(enabled);
+                for (DataModel model : models()) {
+                    assertSame(new TanimotoCoefficientSimilarity(model),
+                            new FastTanimotoCoefficientSimilarity(model), model);
+                    assertSame(new CityBlockSimilarity(model), new FastCityBlockSimilarity(model), model);
+                    assertSame(new LogLikelihoodSimilarity(model), new FastLogLikelihoodSimilarity(model), model);
+                }
+            }
+        } finally {
+            FastSimilarities.useBitsets(bitsets);
+        }
+    }
+
+    public void testPreferenceInferrer() throws TasteException {
+        for (DataModel model : models()) {
+            UserSimilarity[] mahout = {new PearsonCorrelationSimilarity(model),
+                    new EuclideanDistanceSimilarity(model, Weighting.WEIGHTED), new UncenteredCosineSimilarity(model)};
+            AbstractFastSimilarity[] fast = {new FastPearsonCorrelationSimilarity(model),
+                    new FastEuclideanDistanceSimilarity(model, Weighting.WEIGHTED),
+                    new FastUncenteredCosineSimilarity(model)};
+            for (int i = 0; i < mahout.length; i++) {
+                mahout[i].setPreferenceInferrer(new AveragingPreferenceInferrer(model));
+                fast[i].setPreferenceInferrer(new AveragingPreferenceInferrer(model));
+                assertTrue(fast[i].infersPreferences());
+                assertSame(mahout[i], fast[i], model);
+            }
+        }
+    }
+
+    public void testPreferenceInferrerRejected() throws TasteException {
+        DataModel model = cornerCases();
+        try {
+            new FastTanimotoCoefficientSimilarity(model).setPreferenceInferrer(new AveragingPreferenceInferrer(model));
+            fail("Tanimoto coefficient doesn't accept preference inferrers");
+        } catch (UnsupportedOperationException e) {
+            // As Mahout's similarity
+        }
+    }
+
+    //////////////////////////////////////////////
+    // ---------------------------------- Methods
+    /////////////////////////////////////////////
+
+    private static DataModel[] models() {
+        return new DataModel[]{cornerCases(), random(7), random(11)};
+    }
+
+    private static void assertSame(UserSimilarity expected, UserSimilarity actual, DataModel model)
+            throws TasteException {
+        long[] users = new long[model.getNumUsers()];
+        int n = 0;
+        for (LongPrimitiveIterator it = model.getUserIDs(); it.hasNext(); )
+            users[n++] = it.nextLong();
+
+        for (long user1 : users) {
+            for (long user2 : users) {
+                double e = expected.userSimilarity(user1, user2);
+                double a = actual.userSimilarity(user1, user2);
+                String pair = actual.getClass().getSimpleName() + " of users " + user1 + " and " + user2;
+                if (Double.isNaN(e))
+                    assertTrue(pair + ": expected NaN but was " + a, Double.isNaN(a));
+                else
+                    assertEquals(pair, e, a, EPSILON);
+            }
+        }
+    }
+}